@@ -5,6 +5,7 @@ import me.allync.nightmarket.commands.NightMarketCommand;
 import me.allync.nightmarket.economy.EconomyManager;
 import me.allync.nightmarket.gui.NightMarketGUI;
 import me.allync.nightmarket.listeners.InventoryClickListener;
+import me.allync.nightmarket.listeners.PlayerDataListener;
 import me.allync.nightmarket.listeners.PlayerInteractListener;
 import me.allync.nightmarket.listeners.PlayerJoinListener;
 import me.allync.nightmarket.manager.ConfigManager;
@@ -40,7 +41,7 @@ public final class NightMarket extends JavaPlugin {
     private boolean updateAvailable = false;
     private String updateMessage = "";
 
-    private final int LATEST_CONFIG_VERSION = 10;
+    private final int LATEST_CONFIG_VERSION = 16;
 
     @Override
     public void onEnable() {
@@ -111,6 +112,7 @@ public final class NightMarket extends JavaPlugin {
         getServer().getPluginManager().registerEvents(new InventoryClickListener(this), this);
         getServer().getPluginManager().registerEvents(new PlayerInteractListener(this), this);
         getServer().getPluginManager().registerEvents(new PlayerJoinListener(this), this);
+        getServer().getPluginManager().registerEvents(new PlayerDataListener(this), this);
         getLogger().info("Commands and listeners registered.");
 
 
@@ -168,9 +170,12 @@ public final class NightMarket extends JavaPlugin {
         getLogger().info(" ");
 
         getLogger().info("Saving market data and stopping tasks...");
+        if (nightMarketGUI != null) {
+            nightMarketGUI.shutdown();
+        }
         if (marketManager != null) {
-            marketManager.saveMarketState();
             marketManager.stopMarketCycle();
+            marketManager.shutdownPersistence();
             getLogger().info("Market state saved and scheduled tasks have been cancelled.");
         } else {
             getLogger().warning("MarketManager was not initialized, skipping save/stop procedures.");
@@ -1,6 +1,7 @@
 package me.allync.nightmarket.commands;
 
 import me.allync.nightmarket.NightMarket;
+import me.allync.nightmarket.gui.MarketMenuHolder;
 import me.allync.nightmarket.gui.NightMarketGUI;
 import me.allync.nightmarket.manager.ConfigManager;
 import me.allync.nightmarket.manager.ItemManager;
@@ -90,7 +91,7 @@ public class NightMarketCommand implements CommandExecutor, TabCompleter {
                         Player targetPlayer = (Player) targetOfflinePlayer;
                         targetPlayer.sendMessage(configManager.getMsgResetPlayerNotification());
 
-                        if (targetPlayer.getOpenInventory().getTitle().equals(configManager.getGuiTitle())) {
+                        if (MarketMenuHolder.of(targetPlayer.getOpenInventory().getTopInventory()) != null) {
                             plugin.getNightMarketGUI().openNightMarketGUI(targetPlayer);
                         }
                     }
@@ -0,0 +1,22 @@
+package me.allync.nightmarket.gui;
+
+import org.bukkit.Bukkit;
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.InventoryHolder;
+
+/**
+ * Marks an inventory as the purchase confirmation menu.
+ */
+public class ConfirmationMenuHolder implements InventoryHolder {
+
+    private final Inventory inventory;
+
+    public ConfirmationMenuHolder(int size, String title) {
+        this.inventory = Bukkit.createInventory(this, size, title);
+    }
+
+    @Override
+    public Inventory getInventory() {
+        return inventory;
+    }
+}
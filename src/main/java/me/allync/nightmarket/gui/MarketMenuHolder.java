@@ -0,0 +1,128 @@
+package me.allync.nightmarket.gui;
+
+import me.allync.nightmarket.manager.ItemManager;
+import org.bukkit.Bukkit;
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.InventoryHolder;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Marks an inventory as a Night Market menu, so listeners can recognise it with an instanceof check on its holder.
+ * <p>
+ * Each player keeps one menu while online. It remembers what every market slot was last rendered as, so a refresh
+ * only rebuilds the slots whose state has changed.
+ */
+public class MarketMenuHolder implements InventoryHolder {
+
+    enum SlotKind {
+        EMPTY, PLACEHOLDER, PERMISSION_DENIED, OUT_OF_STOCK, PURCHASED, ITEM
+    }
+
+    /**
+     * What a market slot shows. {@code stock} is only set for {@link SlotKind#ITEM}, the only kind that displays it.
+     */
+    record SlotState(SlotKind kind, ItemManager.PlayerMarketItem item, int stock) {}
+
+    /**
+     * The versions of everything the market slots were rendered from. While it is current, the slots are too.
+     */
+    record RenderStamp(long stateVersion, long stockVersion, int catalogVersion) {}
+
+    private final Inventory inventory;
+    private final int configVersion;
+    private final SlotState[] slotStates;
+    // Slots showing an item that needs a permission. Permissions are not versioned, so these are checked on every open.
+    private final BitSet permissionSlots = new BitSet();
+    private RenderStamp renderStamp;
+    // Completes once every render queued for this menu so far has been put into it.
+    private CompletableFuture<Void> pendingRender = CompletableFuture.completedFuture(null);
+
+    public MarketMenuHolder(int size, String title, int configVersion) {
+        this.inventory = Bukkit.createInventory(this, size, title);
+        this.configVersion = configVersion;
+        this.slotStates = new SlotState[size];
+    }
+
+    /**
+     * @return The holder of the player's open Night Market menu, or null if it is not a Night Market menu.
+     */
+    public static MarketMenuHolder of(Inventory inventory) {
+        // Skips the block state snapshot Paper would otherwise take for container inventories.
+        return inventory != null && inventory.getHolder(false) instanceof MarketMenuHolder holder ? holder : null;
+    }
+
+    /**
+     * Records what the slot shows now.
+     *
+     * @return Whether that differs from what it was last rendered as.
+     */
+    boolean updateSlotState(int slot, SlotState state) {
+        if (Objects.equals(slotStates[slot], state)) {
+            return false;
+        }
+        slotStates[slot] = state;
+        String permissionNode = state.item() != null ? state.item().getBaseItem().getPermissionNode() : null;
+        permissionSlots.set(slot, permissionNode != null && !permissionNode.isEmpty());
+        return true;
+    }
+
+    /**
+     * Forgets what the slot shows, e.g. after its render failed, so the next open renders it again.
+     */
+    void clearSlotState(int slot) {
+        slotStates[slot] = null;
+        permissionSlots.clear(slot);
+        renderStamp = null;
+    }
+
+    /**
+     * Adds renders to the ones the menu is waiting on. Any open made before they finish must wait for them too.
+     */
+    void addPendingRenders(List<CompletableFuture<Void>> renders) {
+        if (renders.isEmpty()) {
+            return;
+        }
+        List<CompletableFuture<Void>> waitingOn = new ArrayList<>(renders);
+        if (!pendingRender.isDone()) {
+            waitingOn.add(pendingRender);
+        }
+        pendingRender = CompletableFuture.allOf(waitingOn.toArray(new CompletableFuture[0]));
+    }
+
+    CompletableFuture<Void> getPendingRender() {
+        return pendingRender;
+    }
+
+    BitSet getPermissionSlots() {
+        return permissionSlots;
+    }
+
+    int getConfigVersion() {
+        return configVersion;
+    }
+
+    RenderStamp getRenderStamp() {
+        return renderStamp;
+    }
+
+    void setRenderStamp(RenderStamp renderStamp) {
+        this.renderStamp = renderStamp;
+    }
+
+    /**
+     * @return What the slot was last rendered as, or null if it has not been rendered.
+     */
+    SlotState getSlotState(int slot) {
+        return slotStates[slot];
+    }
+
+    @Override
+    public Inventory getInventory() {
+        return inventory;
+    }
+}
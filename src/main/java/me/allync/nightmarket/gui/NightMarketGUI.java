@@ -4,25 +4,121 @@ import me.allync.nightmarket.NightMarket;
 import me.allync.nightmarket.manager.ConfigManager;
 import me.allync.nightmarket.manager.ItemManager;
 import me.allync.nightmarket.manager.MarketManager;
+import me.allync.nightmarket.util.LoreTemplate;
 import org.bukkit.Bukkit;
 import org.bukkit.entity.Player;
+import org.bukkit.event.inventory.InventoryType;
 import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.InventoryView;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.inventory.meta.ItemMeta;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 
 public class NightMarketGUI {
 
     private final NightMarket plugin;
     private static final Map<UUID, Integer> pendingConfirmation = new HashMap<>();
 
+    // Finished display items, copied out on every render. Only used on the main thread. Entries for stock values that
+    // no longer come up are never looked up again and fall out as the least recently used.
+    private static final int DISPLAY_ITEM_CACHE_SIZE = 1024;
+    private record DisplayKey(ItemManager.PlayerMarketItem item, int stock, boolean permissionDenied) {}
+    private final Map<DisplayKey, ItemStack> displayItemCache = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<DisplayKey, ItemStack> eldest) {
+            return size() > DISPLAY_ITEM_CACHE_SIZE;
+        }
+    };
+    // Display items being built, so every viewer waiting on the same one shares a single build.
+    private final Map<DisplayKey, CompletableFuture<ItemStack>> inFlightRenders = new HashMap<>();
+    private int cachedCatalogVersion = -1;
+
+    // Each online player's market menu, reused and patched in place instead of rebuilt on every open.
+    private final Map<UUID, MarketMenuHolder> marketViews = new HashMap<>();
+    private ItemStack[] confirmationContents;
+    private int confirmationConfigVersion = -1;
+    // IDs of items whose global stock changed this tick. Open menus showing them are patched once, on the next tick.
+    private final BitSet pendingStockItems = new BitSet();
+    private boolean stockPushScheduled;
+
+    // Builds display items that are not cached yet. Workers only see immutable inputs captured on the main thread;
+    // the results are cached and put into inventories back on the main thread.
+    private final ExecutorService renderExecutor;
+    private final Executor mainThread;
+
     public NightMarketGUI(NightMarket plugin) {
         this.plugin = plugin;
+        plugin.getMarketManager().setStockChangeListener(this::onStockChanged);
+        int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+        AtomicInteger threadCount = new AtomicInteger();
+        this.renderExecutor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "NightMarket-Render-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.mainThread = task -> {
+            if (plugin.isEnabled()) {
+                Bukkit.getScheduler().runTask(plugin, task);
+            }
+        };
+    }
+
+    /**
+     * Stops the render workers. Renders still in flight are dropped.
+     */
+    public void shutdown() {
+        renderExecutor.shutdownNow();
+    }
+
+    private void onStockChanged(int itemId) {
+        if (itemId < 0) return;
+        pendingStockItems.set(itemId);
+        if (!stockPushScheduled) {
+            stockPushScheduled = true;
+            Bukkit.getScheduler().runTask(plugin, this::pushStockChanges);
+        }
+    }
+
+    /**
+     * Patches every open market menu showing an item whose stock changed since the last push. However many
+     * purchases happened in between, each affected slot is refreshed once.
+     */
+    private void pushStockChanges() {
+        stockPushScheduled = false;
+        if (pendingStockItems.isEmpty()) return;
+        BitSet changedItems = (BitSet) pendingStockItems.clone();
+        pendingStockItems.clear();
+
+        Set<Integer> marketSlots = plugin.getConfigManager().getMarketSlotMappings().keySet();
+        for (Map.Entry<UUID, MarketMenuHolder> entry : marketViews.entrySet()) {
+            MarketMenuHolder view = entry.getValue();
+            if (view.getInventory().getViewers().isEmpty()) continue;
+            Player player = Bukkit.getPlayer(entry.getKey());
+            if (player == null) continue;
+
+            for (int guiSlot : marketSlots) {
+                if (guiSlot < 0 || guiSlot >= view.getInventory().getSize()) continue;
+                MarketMenuHolder.SlotState state = view.getSlotState(guiSlot);
+                // Unrevealed slots carry no item, so they are never touched here.
+                if (state != null && state.item() != null && changedItems.get(state.item().getBaseItem().getId())) {
+                    refreshSlot(view, player, guiSlot, state.item());
+                }
+            }
+        }
     }
 
     public void openNightMarketGUI(Player player) {
@@ -39,49 +135,209 @@ public class NightMarketGUI {
             return;
         }
 
-        String title = configManager.getGuiTitle();
-        int rows = configManager.getGuiRows();
-        Inventory gui = Bukkit.createInventory(player, rows * 9, title);
+        UUID playerUUID = player.getUniqueId();
+        CompletableFuture<Void> loading = marketManager.whenPlayerDataLoaded(playerUUID);
+        if (!loading.isDone()) {
+            // The player has only just joined and their data is still being read.
+            loading.thenRun(() -> {
+                if (player.isOnline()) {
+                    openNightMarketGUI(player);
+                }
+            });
+            return;
+        }
+
+        MarketMenuHolder view = marketViews.get(playerUUID);
+        if (view == null || view.getConfigVersion() != configManager.getConfigVersion()) {
+            view = new MarketMenuHolder(configManager.getGuiRows() * 9, configManager.getGuiTitle(), configManager.getConfigVersion());
+            populateDecorativeItems(view.getInventory());
+            marketViews.put(playerUUID, view);
+        }
+
+        List<CompletableFuture<Void>> pendingRenders = new ArrayList<>();
+        if (!getRenderStamp(playerUUID).equals(view.getRenderStamp())) {
+            populateMarketItems(view, player, pendingRenders);
+            // Taken after rendering, which may assign items and so change the player's state version.
+            view.setRenderStamp(getRenderStamp(playerUUID));
+        } else {
+            BitSet permissionSlots = view.getPermissionSlots();
+            for (int slot = permissionSlots.nextSetBit(0); slot >= 0; slot = permissionSlots.nextSetBit(slot + 1)) {
+                addPending(pendingRenders, refreshSlot(view, player, slot, view.getSlotState(slot).item()));
+            }
+        }
+
+        view.addPendingRenders(pendingRenders);
+        CompletableFuture<Void> rendering = view.getPendingRender();
+        if (rendering.isDone()) {
+            showMarketView(player, view);
+        } else {
+            // Open once every slot has its item, so the menu never shows half rendered. This includes renders queued
+            // by an earlier open that are still running.
+            MarketMenuHolder renderedView = view;
+            Inventory openedFrom = player.getOpenInventory().getTopInventory();
+            rendering.whenCompleteAsync((ignored, error) -> {
+                if (player.isOnline() && plugin.getMarketManager().isMarketOpen() && !hasOpenedOtherMenu(player, renderedView, openedFrom)) {
+                    showMarketView(player, renderedView);
+                }
+            }, mainThread);
+        }
+    }
+
+    /**
+     * @return Whether the player has opened some other inventory since asking for the market, which it must not replace.
+     */
+    private static boolean hasOpenedOtherMenu(Player player, MarketMenuHolder view, Inventory openedFrom) {
+        InventoryView openView = player.getOpenInventory();
+        Inventory top = openView.getTopInventory();
+        return top != openedFrom && openView.getType() != InventoryType.CRAFTING && MarketMenuHolder.of(top) != view;
+    }
 
-        populateMarketItems(gui, player);
-        populateDecorativeItems(gui);
+    private void showMarketView(Player player, MarketMenuHolder view) {
+        // A menu that is already open has just been patched in place.
+        if (MarketMenuHolder.of(player.getOpenInventory().getTopInventory()) != view) {
+            ConfigManager configManager = plugin.getConfigManager();
+            configManager.playSound(player, configManager.getGuiOpenSound());
+            player.openInventory(view.getInventory());
+        }
+    }
 
-        configManager.playSound(player, configManager.getGuiOpenSound());
-        player.openInventory(gui);
+    private static void addPending(List<CompletableFuture<Void>> pendingRenders, CompletableFuture<Void> render) {
+        if (render != null) {
+            pendingRenders.add(render);
+        }
     }
 
-    private void populateMarketItems(Inventory gui, Player player) {
+    private MarketMenuHolder.RenderStamp getRenderStamp(UUID playerUUID) {
         MarketManager marketManager = plugin.getMarketManager();
-        ConfigManager configManager = plugin.getConfigManager();
-        UUID playerUUID = player.getUniqueId();
+        return new MarketMenuHolder.RenderStamp(marketManager.getStateVersion(playerUUID), marketManager.getStockVersion(),
+                plugin.getItemManager().getCatalogVersion());
+    }
 
+    /**
+     * Brings every market slot of the menu up to date, rebuilding only the slots whose state changed.
+     */
+    private void populateMarketItems(MarketMenuHolder view, Player player, List<CompletableFuture<Void>> pendingRenders) {
+        Inventory gui = view.getInventory();
+        ItemManager.PlayerMarketItem[] assignedItems = plugin.getMarketManager().getOrAssignPlayerItems(player, gui.getSize());
+        ConfigManager configManager = plugin.getConfigManager();
         for (int guiSlot : configManager.getMarketSlotMappings().keySet()) {
-            if (guiSlot >= gui.getSize()) continue;
+            if (guiSlot < 0 || guiSlot >= gui.getSize()) continue;
+            // Decorations placed over a market slot win, as they always have.
+            if (configManager.getMarketSlotRole(guiSlot) != ConfigManager.SlotRole.MARKET_ITEM) continue;
+            addPending(pendingRenders, refreshSlot(view, player, guiSlot, assignedItems[guiSlot]));
+        }
+    }
 
-            ItemManager.PlayerMarketItem assignedItem = marketManager.getOrAssignPlayerItemForSlot(player, guiSlot, configManager.getYmlKeyForGuiSlot(guiSlot));
+    /**
+     * Updates the slot if its state changed. Stand-in items and cached display items are set right away; anything
+     * else is built on a render worker and set on the main thread once it is ready.
+     *
+     * @return The pending render, or null if the slot is already up to date.
+     */
+    private CompletableFuture<Void> refreshSlot(MarketMenuHolder view, Player player, int guiSlot, ItemManager.PlayerMarketItem assignedItem) {
+        MarketMenuHolder.SlotState state = getSlotState(player, guiSlot, assignedItem);
+        if (!view.updateSlotState(guiSlot, state)) {
+            return null;
+        }
+        DisplayKey key = switch (state.kind()) {
+            case PERMISSION_DENIED -> new DisplayKey(state.item(), state.item().getBaseItem().getInitialStock(), true);
+            case ITEM -> new DisplayKey(state.item(), state.stock(), false);
+            default -> null;
+        };
+        if (key == null) {
+            view.getInventory().setItem(guiSlot, renderStandIn(state));
+            return null;
+        }
+        ItemStack cached = getCachedDisplayItem(key);
+        if (cached != null) {
+            view.getInventory().setItem(guiSlot, cached);
+            return null;
+        }
 
-            if (assignedItem == null) {
-                if (marketManager.isSlotRevealed(playerUUID, guiSlot)) {
-                } else {
-                    gui.setItem(guiSlot, configManager.getGlobalPlaceholderItem());
+        return getDisplayItemRender(key).handleAsync((built, error) -> {
+            // The slot may have moved on while this was rendering.
+            if (!state.equals(view.getSlotState(guiSlot))) {
+                return null;
+            }
+            if (built == null) {
+                plugin.getLogger().log(Level.WARNING, "Could not render the Night Market item in slot " + guiSlot + " on a render worker. Building it now instead.", error);
+                try {
+                    built = buildDisplayItem(key, plugin.getItemManager().getLoreTemplate(key.item()), getPermissionDeniedLore(key));
+                } catch (RuntimeException e) {
+                    plugin.getLogger().log(Level.WARNING, "Could not render the Night Market item in slot " + guiSlot + ".", e);
+                    view.clearSlotState(guiSlot);
+                    return null;
                 }
-                continue;
             }
+            view.getInventory().setItem(guiSlot, built.clone());
+            return null;
+        }, mainThread);
+    }
 
-            if (!marketManager.isSlotRevealed(playerUUID, guiSlot)) {
-                gui.setItem(guiSlot, configManager.getGlobalPlaceholderItem());
-            } else {
-                if (!assignedItem.getBaseItem().hasPermission(player)) {
-                    gui.setItem(guiSlot, getPermissionDeniedItem(assignedItem));
-                } else if (configManager.getStockMode() == ConfigManager.StockMode.GLOBAL && marketManager.getRemainingStock(assignedItem.getBaseItem().getKey()) == 0) {
-                    gui.setItem(guiSlot, configManager.getGlobalOutOfStockItemDisplay());
-                } else if (marketManager.hasPlayerMetPurchaseLimit(playerUUID, assignedItem.getBaseItem())) {
-                    gui.setItem(guiSlot, configManager.getGlobalPurchasedItemDisplay());
-                } else {
-                    gui.setItem(guiSlot, getDisplayItemWithDynamicLore(player, assignedItem));
-                }
+    /**
+     * @return The build of the display item, shared with every other slot waiting on it. Finished builds are cached
+     * on the main thread; failed ones are not, so the next render tries again.
+     */
+    private CompletableFuture<ItemStack> getDisplayItemRender(DisplayKey key) {
+        CompletableFuture<ItemStack> render = inFlightRenders.get(key);
+        if (render != null) {
+            return render;
+        }
+        LoreTemplate loreTemplate = plugin.getItemManager().getLoreTemplate(key.item());
+        List<String> permissionDeniedLore = getPermissionDeniedLore(key);
+        CompletableFuture<ItemStack> started = CompletableFuture.supplyAsync(() -> buildDisplayItem(key, loreTemplate, permissionDeniedLore), renderExecutor);
+        inFlightRenders.put(key, started);
+        started.whenCompleteAsync((built, error) -> {
+            inFlightRenders.remove(key, started);
+            if (built != null) {
+                cacheDisplayItem(key, built);
             }
+        }, mainThread);
+        return started;
+    }
+
+    private List<String> getPermissionDeniedLore(DisplayKey key) {
+        return key.permissionDenied() ? plugin.getConfigManager().getPermissionDeniedLore() : List.of();
+    }
+
+    private MarketMenuHolder.SlotState getSlotState(Player player, int guiSlot, ItemManager.PlayerMarketItem assignedItem) {
+        MarketManager marketManager = plugin.getMarketManager();
+        UUID playerUUID = player.getUniqueId();
+        MarketMenuHolder.SlotKind kind;
+        int stock = 0;
+        if (!marketManager.isSlotRevealed(playerUUID, guiSlot)) {
+            kind = MarketMenuHolder.SlotKind.PLACEHOLDER;
+            assignedItem = null;
+        } else if (assignedItem == null) {
+            kind = MarketMenuHolder.SlotKind.EMPTY;
+        } else if (!assignedItem.getBaseItem().hasPermission(player)) {
+            kind = MarketMenuHolder.SlotKind.PERMISSION_DENIED;
+        } else if (plugin.getConfigManager().getStockMode() == ConfigManager.StockMode.GLOBAL && marketManager.getRemainingStock(assignedItem.getBaseItem()) == 0) {
+            kind = MarketMenuHolder.SlotKind.OUT_OF_STOCK;
+        } else if (marketManager.hasPlayerMetPurchaseLimit(playerUUID, assignedItem.getBaseItem())) {
+            kind = MarketMenuHolder.SlotKind.PURCHASED;
+        } else {
+            kind = MarketMenuHolder.SlotKind.ITEM;
+            stock = getDisplayedStock(player, assignedItem);
         }
+        return new MarketMenuHolder.SlotState(kind, assignedItem, stock);
+    }
+
+    private ItemStack renderStandIn(MarketMenuHolder.SlotState state) {
+        ConfigManager configManager = plugin.getConfigManager();
+        return switch (state.kind()) {
+            case PLACEHOLDER -> configManager.getGlobalPlaceholderItem();
+            case OUT_OF_STOCK -> configManager.getGlobalOutOfStockItemDisplay();
+            case PURCHASED -> configManager.getGlobalPurchasedItemDisplay();
+            default -> null;
+        };
+    }
+
+    /**
+     * Drops the player's market menu. Called when they leave.
+     */
+    public void removeMarketView(UUID playerUUID) {
+        marketViews.remove(playerUUID);
     }
 
     private void populateDecorativeItems(Inventory gui) {
@@ -103,122 +359,117 @@ public class NightMarketGUI {
         ConfigManager configManager = plugin.getConfigManager();
         String title = configManager.getConfirmationMenuTitle();
         int rows = configManager.getConfirmationMenuRows();
-        Inventory confirmationGui = Bukkit.createInventory(player, rows * 9, title);
-
-        confirmationGui.setItem(configManager.getConfirmationMenuItemDisplaySlot(), itemToPurchase);
+        Inventory confirmationGui = new ConfirmationMenuHolder(rows * 9, title).getInventory();
 
-        ConfigManager.DecorativeItemConfig confirmConfig = configManager.getConfirmationMenuConfirmButton();
-        if (confirmConfig != null && !confirmConfig.slots.isEmpty()) {
-            confirmationGui.setItem(confirmConfig.slots.get(0), createMenuItem(confirmConfig));
+        confirmationGui.setContents(getConfirmationContents(confirmationGui.getSize()));
+        int displaySlot = configManager.getConfirmationMenuItemDisplaySlot();
+        // A fill item placed over the display slot wins, as it always has.
+        if (configManager.getConfirmationSlotRole(displaySlot) == ConfigManager.SlotRole.DISPLAY) {
+            confirmationGui.setItem(displaySlot, itemToPurchase);
         }
 
-        ConfigManager.DecorativeItemConfig cancelConfig = configManager.getConfirmationMenuCancelButton();
-        if (cancelConfig != null && !cancelConfig.slots.isEmpty()) {
-            confirmationGui.setItem(cancelConfig.slots.get(0), createMenuItem(cancelConfig));
-        }
+        pendingConfirmation.put(player.getUniqueId(), sourceSlot);
+        player.openInventory(confirmationGui);
+    }
 
-        ConfigManager.DecorativeItemConfig fillConfig = configManager.getConfirmationMenuFillItem();
-        if (fillConfig != null) {
+    /**
+     * @return The buttons and fill of the confirmation menu, built once per config load. The array is a fresh copy.
+     */
+    private ItemStack[] getConfirmationContents(int size) {
+        ConfigManager configManager = plugin.getConfigManager();
+        if (confirmationContents == null || confirmationContents.length != size || confirmationConfigVersion != configManager.getConfigVersion()) {
+            ItemStack[] contents = new ItemStack[size];
+            ConfigManager.DecorativeItemConfig confirmConfig = configManager.getConfirmationMenuConfirmButton();
+            if (confirmConfig != null && !confirmConfig.slots.isEmpty()) {
+                setTemplateItem(contents, confirmConfig.slots.get(0), createMenuItem(confirmConfig));
+            }
+            ConfigManager.DecorativeItemConfig cancelConfig = configManager.getConfirmationMenuCancelButton();
+            if (cancelConfig != null && !cancelConfig.slots.isEmpty()) {
+                setTemplateItem(contents, cancelConfig.slots.get(0), createMenuItem(cancelConfig));
+            }
+            ConfigManager.DecorativeItemConfig fillConfig = configManager.getConfirmationMenuFillItem();
             ItemStack fillStack = createMenuItem(fillConfig);
             if (fillStack != null) {
                 for (int slot : fillConfig.slots) {
-                    if (slot >= 0 && slot < confirmationGui.getSize()) {
-                        confirmationGui.setItem(slot, fillStack);
-                    }
+                    setTemplateItem(contents, slot, fillStack);
                 }
             }
+            confirmationContents = contents;
+            confirmationConfigVersion = configManager.getConfigVersion();
         }
+        // The inventory copies each item it is given, so the template's stacks can be shared.
+        return confirmationContents.clone();
+    }
 
-        pendingConfirmation.put(player.getUniqueId(), sourceSlot);
-        player.openInventory(confirmationGui);
+    private static void setTemplateItem(ItemStack[] contents, int slot, ItemStack item) {
+        if (slot >= 0 && slot < contents.length) {
+            contents[slot] = item;
+        }
     }
 
     public void revealItem(Player player, int clickedGuiSlot) {
         MarketManager marketManager = plugin.getMarketManager();
         ItemManager.PlayerMarketItem itemToReveal = marketManager.getPlayerAssignedItem(player, clickedGuiSlot);
-        Inventory openInventory = player.getOpenInventory().getTopInventory();
+        MarketMenuHolder view = MarketMenuHolder.of(player.getOpenInventory().getTopInventory());
 
-        if (itemToReveal != null && openInventory.getViewers().contains(player)) {
+        if (itemToReveal != null && view != null) {
             marketManager.markSlotAsRevealed(player.getUniqueId(), clickedGuiSlot);
-
-            ItemStack display;
-            if (!itemToReveal.getBaseItem().hasPermission(player)) {
-                display = getPermissionDeniedItem(itemToReveal);
-            } else {
-                display = getDisplayItemWithDynamicLore(player, itemToReveal);
-            }
-            openInventory.setItem(clickedGuiSlot, display);
-        }
-    }
-
-    private ItemStack getPermissionDeniedItem(ItemManager.PlayerMarketItem playerMarketItem) {
-        ItemStack displayItem = getDisplayItemWithDynamicLore(null, playerMarketItem);
-        ItemMeta meta = displayItem.getItemMeta();
-        if (meta != null) {
-            List<String> newLore = meta.hasLore() ? new ArrayList<>(meta.getLore()) : new ArrayList<>();
-            newLore.addAll(plugin.getConfigManager().getPermissionDeniedLore());
-            meta.setLore(newLore);
-            displayItem.setItemMeta(meta);
+            refreshSlot(view, player, clickedGuiSlot, itemToReveal);
         }
-        return displayItem;
     }
 
-    private ItemStack getDisplayItemWithDynamicLore(Player player, ItemManager.PlayerMarketItem playerMarketItem) {
-        ItemStack displayItem = playerMarketItem.getBaseItem().getDisplayItem();
-        ItemMeta meta = displayItem.getItemMeta();
+    private int getDisplayedStock(Player player, ItemManager.PlayerMarketItem playerMarketItem) {
         ItemManager.ConfiguredItem baseItem = playerMarketItem.getBaseItem();
         MarketManager marketManager = plugin.getMarketManager();
-        ConfigManager configManager = plugin.getConfigManager();
-
-        if (meta != null && meta.hasLore()) {
-            List<String> newLore = new ArrayList<>();
-            String stockDisplay;
-
-            if (player != null) {
-                if (configManager.getStockMode() == ConfigManager.StockMode.GLOBAL) {
-                    int globalStock = marketManager.getRemainingStock(baseItem.getKey());
-                    stockDisplay = (globalStock == -1) ? "Infinite" : String.valueOf(globalStock);
-                } else { // PLAYER mode
-                    int playerPurchaseCount = marketManager.getPlayerPurchaseCount(player.getUniqueId(), baseItem.getKey());
-                    int itemMaxStock = baseItem.getInitialStock();
-                    int playerRemainingStock = (itemMaxStock == -1) ? -1 : itemMaxStock - playerPurchaseCount;
-                    stockDisplay = (playerRemainingStock == -1) ? "Infinite" : String.valueOf(playerRemainingStock);
-                }
-            } else {
-                stockDisplay = String.valueOf(baseItem.getInitialStock());
-                if (stockDisplay.equals("-1")) stockDisplay = "Infinite";
-            }
-
+        if (plugin.getConfigManager().getStockMode() == ConfigManager.StockMode.GLOBAL) {
+            return marketManager.getRemainingStock(baseItem);
+        }
+        // PLAYER mode
+        int playerPurchaseCount = marketManager.getPlayerPurchaseCount(player.getUniqueId(), baseItem.getKey());
+        int itemMaxStock = baseItem.getInitialStock();
+        return (itemMaxStock == -1) ? -1 : itemMaxStock - playerPurchaseCount;
+    }
 
-            for (String line : meta.getLore()) {
-                String processedLine = line;
+    /**
+     * @return A copy of the finished display item, or null if it has not been built yet.
+     */
+    private ItemStack getCachedDisplayItem(DisplayKey key) {
+        validateDisplayItemCache();
+        ItemStack cached = displayItemCache.get(key);
+        return cached != null ? cached.clone() : null;
+    }
 
-                // Logika Harga Baru
-                if (baseItem.hasItemPrice()) {
-                    if (processedLine.contains("%price_placeholder%")) {
-                        continue;
-                    }
-                } else {
-                    // Logika Harga Uang (yang sudah ada)
-                    if (processedLine.contains("%price_placeholder%")) {
-                        ItemManager.PricePlaceholderConfig priceFormats = plugin.getItemManager().getPricePlaceholderConfig();
-                        String priceLine;
-                        if (playerMarketItem.isDiscounted()) {
-                            priceLine = priceFormats.discounted()
-                                    .replace("%original_price%", String.format("%,.0f", baseItem.getPrice()));
-                        } else {
-                            priceLine = priceFormats.normal();
-                        }
-                        priceLine = priceLine.replace("%final_price%", String.format("%,.0f", playerMarketItem.getFinalPrice()));
-                        processedLine = priceLine;
-                    }
-                }
+    private void cacheDisplayItem(DisplayKey key, ItemStack displayItem) {
+        validateDisplayItemCache();
+        displayItemCache.put(key, displayItem);
+    }
 
-                processedLine = processedLine.replace("%stock%", stockDisplay);
+    private void validateDisplayItemCache() {
+        int catalogVersion = plugin.getItemManager().getCatalogVersion();
+        // Stock is part of the key, but a reload changes the items themselves.
+        if (catalogVersion != cachedCatalogVersion) {
+            displayItemCache.clear();
+            inFlightRenders.clear();
+            cachedCatalogVersion = catalogVersion;
+        }
+    }
 
-                newLore.add(processedLine);
-            }
-            meta.setLore(newLore);
+    /**
+     * Builds a display item from inputs captured on the main thread. Runs on a render worker.
+     */
+    private static ItemStack buildDisplayItem(DisplayKey key, LoreTemplate loreTemplate, List<String> permissionDeniedLore) {
+        ItemStack displayItem = key.item().getBaseItem().getDisplayItem();
+        if (loreTemplate == null && !key.permissionDenied()) {
+            return displayItem;
+        }
+        ItemMeta meta = displayItem.getItemMeta();
+        if (meta != null) {
+            // The price line was resolved when the items were loaded; only the stock is filled in here.
+            List<String> lore = loreTemplate != null
+                    ? loreTemplate.fill(key.stock() == -1 ? "Infinite" : String.valueOf(key.stock()))
+                    : new ArrayList<>();
+            lore.addAll(permissionDeniedLore);
+            meta.setLore(lore);
             displayItem.setItemMeta(meta);
         }
         return displayItem;
@@ -3,6 +3,8 @@ package me.allync.nightmarket.listeners;
 import me.allync.nightmarket.NightMarket;
 import me.allync.nightmarket.economy.EconomyProvider;
 import me.allync.nightmarket.economy.provider.ItemEconomyProvider;
+import me.allync.nightmarket.gui.ConfirmationMenuHolder;
+import me.allync.nightmarket.gui.MarketMenuHolder;
 import me.allync.nightmarket.gui.NightMarketGUI;
 import me.allync.nightmarket.manager.ConfigManager;
 import me.allync.nightmarket.manager.ItemManager;
@@ -14,8 +16,8 @@ import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.Listener;
 import org.bukkit.event.inventory.InventoryClickEvent;
+import org.bukkit.inventory.InventoryHolder;
 import org.bukkit.inventory.ItemStack;
-import org.bukkit.inventory.meta.ItemMeta;
 
 import java.util.UUID;
 
@@ -31,19 +33,19 @@ public class InventoryClickListener implements Listener {
 
     @EventHandler
     public void onInventoryClick(InventoryClickEvent event) {
+        // Runs for every click on the server; anything that is not one of our menus leaves here.
+        InventoryHolder holder = event.getView().getTopInventory().getHolder(false);
+        if (!(holder instanceof MarketMenuHolder) && !(holder instanceof ConfirmationMenuHolder)) return;
         if (!(event.getWhoClicked() instanceof Player)) return;
 
         Player player = (Player) event.getWhoClicked();
         ItemStack currentItem = event.getCurrentItem();
         if (currentItem == null || currentItem.getType() == Material.AIR) return;
 
-        ConfigManager configManager = plugin.getConfigManager();
-        String viewTitle = event.getView().getTitle();
-
-        if (viewTitle.equals(configManager.getGuiTitle())) {
+        if (holder instanceof MarketMenuHolder) {
             handleNightMarketClick(event, player, currentItem);
-        } else if (viewTitle.equals(configManager.getConfirmationMenuTitle())) {
-            handleConfirmationMenuClick(event, player, currentItem);
+        } else {
+            handleConfirmationMenuClick(event, player);
         }
     }
 
@@ -53,11 +55,12 @@ public class InventoryClickListener implements Listener {
         MarketManager marketManager = plugin.getMarketManager();
         int clickedSlot = event.getRawSlot();
 
-        if (clickedSlot >= event.getView().getTopInventory().getSize() || !configManager.isMarketItemSlot(clickedSlot)) {
+        if (clickedSlot >= event.getView().getTopInventory().getSize() || configManager.getMarketSlotRole(clickedSlot) != ConfigManager.SlotRole.MARKET_ITEM) {
             return;
         }
 
-        if (currentItem.isSimilar(configManager.getGlobalPlaceholderItem())) {
+        // Unrevealed slots always show the placeholder.
+        if (!marketManager.isSlotRevealed(player.getUniqueId(), clickedSlot)) {
             configManager.playSound(player, configManager.getItemRevealSound());
             nightMarketGUI.revealItem(player, clickedSlot);
             return;
@@ -72,7 +75,7 @@ public class InventoryClickListener implements Listener {
             return;
         }
 
-        if (!currentItem.isSimilar(configManager.getGlobalPurchasedItemDisplay()) && !currentItem.isSimilar(configManager.getGlobalOutOfStockItemDisplay())) {
+        if (configManager.getMarketDisplay(currentItem) == null) {
             if (marketManager.hasPlayerMetPurchaseLimit(player.getUniqueId(), assignedItem.getBaseItem())) {
                 player.sendMessage(configManager.getMsgItemAlreadyPurchasedDesync());
                 nightMarketGUI.openNightMarketGUI(player);
@@ -81,7 +84,7 @@ public class InventoryClickListener implements Listener {
             }
         } else {
             if (configManager.getStockMode() == ConfigManager.StockMode.GLOBAL) {
-                if (marketManager.getRemainingStock(assignedItem.getBaseItem().getKey()) == 0) {
+                if (marketManager.getRemainingStock(assignedItem.getBaseItem()) == 0) {
                     player.sendMessage(configManager.getMsgItemSoldOut());
                 } else {
                     player.sendMessage(configManager.getMsgItemAlreadyPurchased());
@@ -92,17 +95,19 @@ public class InventoryClickListener implements Listener {
         }
     }
 
-    private void handleConfirmationMenuClick(InventoryClickEvent event, Player player, ItemStack currentItem) {
+    private void handleConfirmationMenuClick(InventoryClickEvent event, Player player) {
         event.setCancelled(true);
-        ConfigManager configManager = plugin.getConfigManager();
-        ItemStack confirmButtonItem = createMenuItem(configManager.getConfirmationMenuConfirmButton());
-        ItemStack cancelButtonItem = createMenuItem(configManager.getConfirmationMenuCancelButton());
+        int clickedSlot = event.getRawSlot();
+        if (clickedSlot >= event.getView().getTopInventory().getSize()) return;
 
-        if (confirmButtonItem != null && currentItem.isSimilar(confirmButtonItem)) {
-            purchaseItem(player);
-        } else if (cancelButtonItem != null && currentItem.isSimilar(cancelButtonItem)) {
-            NightMarketGUI.getPendingConfirmation().remove(player.getUniqueId());
-            nightMarketGUI.openNightMarketGUI(player);
+        switch (plugin.getConfigManager().getConfirmationSlotRole(clickedSlot)) {
+            case CONFIRM -> purchaseItem(player);
+            case CANCEL -> {
+                NightMarketGUI.getPendingConfirmation().remove(player.getUniqueId());
+                nightMarketGUI.openNightMarketGUI(player);
+            }
+            default -> {
+            }
         }
     }
 
@@ -125,7 +130,7 @@ public class InventoryClickListener implements Listener {
         }
 
         if (configManager.getStockMode() == ConfigManager.StockMode.GLOBAL) {
-            if (marketManager.getRemainingStock(configuredItem.getKey()) == 0) {
+            if (marketManager.getRemainingStock(configuredItem) == 0) {
                 player.sendMessage(configManager.getMsgItemSoldOut());
                 nightMarketGUI.openNightMarketGUI(player);
                 return;
@@ -196,24 +201,10 @@ public class InventoryClickListener implements Listener {
         }
 
         if (configManager.getStockMode() == ConfigManager.StockMode.GLOBAL) {
-            marketManager.decrementStock(configuredItem.getKey());
+            marketManager.decrementStock(configuredItem);
         }
 
         marketManager.recordPlayerPurchase(playerUUID, configuredItem.getKey());
-        marketManager.saveMarketState();
         nightMarketGUI.openNightMarketGUI(player);
     }
-
-    private ItemStack createMenuItem(ConfigManager.DecorativeItemConfig config) {
-        if (config == null) return null;
-        ItemStack stack = new ItemStack(config.material);
-        ItemMeta meta = stack.getItemMeta();
-        if (meta != null) {
-            meta.setDisplayName(config.name);
-            meta.setLore(config.lore);
-            if (config.customModelData != 0) meta.setCustomModelData(config.customModelData);
-            stack.setItemMeta(meta);
-        }
-        return stack;
-    }
 }
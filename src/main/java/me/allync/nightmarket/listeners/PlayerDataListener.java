@@ -0,0 +1,44 @@
+package me.allync.nightmarket.listeners;
+
+import me.allync.nightmarket.NightMarket;
+import me.allync.nightmarket.gui.NightMarketGUI;
+import me.allync.nightmarket.manager.MarketManager;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+
+/**
+ * Keeps each player's market data in memory only while they are online.
+ */
+public class PlayerDataListener implements Listener {
+
+    private final MarketManager marketManager;
+    private final NightMarketGUI nightMarketGUI;
+
+    public PlayerDataListener(NightMarket plugin) {
+        this.marketManager = plugin.getMarketManager();
+        this.nightMarketGUI = plugin.getNightMarketGUI();
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onAsyncPreLogin(AsyncPlayerPreLoginEvent event) {
+        if (event.getLoginResult() != AsyncPlayerPreLoginEvent.Result.ALLOWED) {
+            return;
+        }
+        marketManager.preloadPlayerData(event.getUniqueId());
+    }
+
+    @EventHandler(priority = EventPriority.LOWEST)
+    public void onPlayerJoin(PlayerJoinEvent event) {
+        marketManager.loadPlayerData(event.getPlayer().getUniqueId());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerQuit(PlayerQuitEvent event) {
+        marketManager.unloadPlayerData(event.getPlayer().getUniqueId());
+        nightMarketGUI.removeMarketView(event.getPlayer().getUniqueId());
+    }
+}
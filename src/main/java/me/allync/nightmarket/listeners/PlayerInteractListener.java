@@ -1,6 +1,7 @@
 package me.allync.nightmarket.listeners;
 
 import me.allync.nightmarket.NightMarket;
+import me.allync.nightmarket.gui.MarketMenuHolder;
 import me.allync.nightmarket.manager.ItemManager;
 import me.allync.nightmarket.manager.MarketManager;
 import org.bukkit.entity.Player;
@@ -48,7 +49,7 @@ public class PlayerInteractListener implements Listener {
 
             itemInHand.setAmount(itemInHand.getAmount() - 1);
 
-            if (player.getOpenInventory().getTitle().equals(plugin.getConfigManager().getGuiTitle())) {
+            if (MarketMenuHolder.of(player.getOpenInventory().getTopInventory()) != null) {
                 plugin.getNightMarketGUI().openNightMarketGUI(player);
             }
         }
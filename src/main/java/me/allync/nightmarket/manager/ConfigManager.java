@@ -1,8 +1,10 @@
 package me.allync.nightmarket.manager;
 
 import me.allync.nightmarket.NightMarket;
+import me.allync.nightmarket.storage.StateFormat;
 import org.bukkit.ChatColor;
 import org.bukkit.Material;
+import org.bukkit.NamespacedKey;
 import org.bukkit.Sound;
 import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.configuration.file.FileConfiguration;
@@ -10,6 +12,7 @@ import org.bukkit.configuration.file.YamlConfiguration;
 import org.bukkit.entity.Player;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.inventory.meta.ItemMeta;
+import org.bukkit.persistence.PersistentDataType;
 
 import java.io.File;
 import java.util.ArrayList;
@@ -29,13 +32,22 @@ public class ConfigManager {
     private Material globalPlaceholderMaterial, globalPurchasedItemMaterial, globalOutOfStockItemMaterial;
     private String globalPlaceholderName, globalPurchasedItemName, globalOutOfStockItemName;
     private List<String> globalPlaceholderLore, globalPurchasedItemLore, globalOutOfStockItemLore, permissionDeniedLore;
-    private long openDurationSeconds, closeDurationSeconds;
+    // Built once per load and tagged with their MarketDisplay, so clicks can tell them apart without comparing meta.
+    private final NamespacedKey marketDisplayKey;
+    private ItemStack globalPlaceholderItem, globalPurchasedItemDisplay, globalOutOfStockItemDisplay;
+    private long openDurationSeconds, closeDurationSeconds, prepareBeforeOpenSeconds;
     private List<String> marketOpenBroadcast, marketCloseBroadcast, forceOpenMessage, forceCloseMessage;
     private boolean economyEnabled;
     private String economyProviderName;
     private boolean checkUpdates;
     private StockMode stockMode;
     private int numberOfGlobalItemsToShow;
+    private long stateSaveDelayTicks;
+    private StateFormat stateFormat;
+    private boolean journalEnabled, journalFsync;
+    private long journalCompactThresholdBytes;
+    private boolean mappedStock;
+    private boolean seededAssignments;
 
     private String placeholderOpenText, placeholderClosedText;
 
@@ -58,11 +70,25 @@ public class ConfigManager {
     private int confirmationMenuRows;
     private int confirmationMenuItemDisplaySlot;
     private DecorativeItemConfig confirmationMenuConfirmButton, confirmationMenuCancelButton, confirmationMenuFillItem;
+    // Indexed by slot. Compiled in the order the menus are filled, so a slot's role is whatever ends up shown there.
+    private SlotRole[] marketSlotRoles = new SlotRole[0];
+    private SlotRole[] confirmationSlotRoles = new SlotRole[0];
+    private int configVersion;
 
     public enum StockMode {
         GLOBAL, PLAYER
     }
 
+    /** What a slot of the market or confirmation menu holds, as laid out in gui.yml. */
+    public enum SlotRole {
+        EMPTY, MARKET_ITEM, DECORATIVE, CONFIRM, CANCEL, DISPLAY
+    }
+
+    /** The stand-in items shown in market slots instead of an item's own display. */
+    public enum MarketDisplay {
+        PLACEHOLDER, PURCHASED, OUT_OF_STOCK
+    }
+
     public record SoundConfig(Sound sound, float volume, float pitch) {}
     public record Announcement(long timeBeforeSeconds, List<String> message) {}
     public static class DecorativeItemConfig {
@@ -83,6 +109,7 @@ public class ConfigManager {
 
     public ConfigManager(NightMarket plugin) {
         this.plugin = plugin;
+        this.marketDisplayKey = new NamespacedKey(plugin, "market_display");
         loadGeneralConfig();
         loadGuiConfig();
     }
@@ -111,9 +138,14 @@ public class ConfigManager {
         globalOutOfStockItemName = ChatColor.translateAlternateColorCodes('&', generalConfig.getString("global_out_of_stock_item_display.name", "&7&lOUT OF STOCK"));
         globalOutOfStockItemLore = getColoredList("global_out_of_stock_item_display.lore");
 
+        globalPlaceholderItem = createDisplayItem(globalPlaceholderMaterial, globalPlaceholderName, globalPlaceholderLore, MarketDisplay.PLACEHOLDER);
+        globalPurchasedItemDisplay = createDisplayItem(globalPurchasedItemMaterial, globalPurchasedItemName, globalPurchasedItemLore, MarketDisplay.PURCHASED);
+        globalOutOfStockItemDisplay = createDisplayItem(globalOutOfStockItemMaterial, globalOutOfStockItemName, globalOutOfStockItemLore, MarketDisplay.OUT_OF_STOCK);
+
         // Market Schedule & General
         openDurationSeconds = generalConfig.getLong("market_schedule.open_duration", 604800L);
         closeDurationSeconds = generalConfig.getLong("market_schedule.close_duration", 259200L);
+        prepareBeforeOpenSeconds = Math.max(0L, generalConfig.getLong("market_schedule.prepare_before_open", 300L));
         marketOpenBroadcast = getColoredList("market_schedule.market_open_broadcast");
         marketCloseBroadcast = getColoredList("market_schedule.market_close_broadcast");
         forceOpenMessage = getColoredList("market_schedule.force_open_message");
@@ -123,6 +155,20 @@ public class ConfigManager {
         checkUpdates = generalConfig.getBoolean("check-updates", true);
         numberOfGlobalItemsToShow = generalConfig.getInt("market_settings.number_of_global_items_to_show", 1); // <-- LOAD NEW VALUE
 
+        // Storage
+        stateSaveDelayTicks = generalConfig.getLong("storage.save_delay_ticks", 40L);
+        try {
+            stateFormat = StateFormat.valueOf(generalConfig.getString("storage.format", "YAML").toUpperCase());
+        } catch (IllegalArgumentException e) {
+            stateFormat = StateFormat.YAML;
+            plugin.getLogger().warning("Invalid storage format in config.yml. Defaulting to YAML.");
+        }
+        journalEnabled = generalConfig.getBoolean("storage.journal.enabled", true);
+        journalFsync = generalConfig.getBoolean("storage.journal.fsync", true);
+        journalCompactThresholdBytes = generalConfig.getLong("storage.journal.compact_threshold_kb", 1024L) * 1024L;
+        mappedStock = generalConfig.getBoolean("storage.mapped_stock", false);
+        seededAssignments = generalConfig.getBoolean("storage.seeded_assignments", false);
+
         // Placeholders
         placeholderOpenText = ChatColor.translateAlternateColorCodes('&', generalConfig.getString("placeholders.open_text", "YES"));
         placeholderClosedText = ChatColor.translateAlternateColorCodes('&', generalConfig.getString("placeholders.closed_text", "NO"));
@@ -305,6 +351,38 @@ public class ConfigManager {
             confirmationMenuCancelButton = loadDecorativeItem(confirmSection, "cancel_button");
             confirmationMenuFillItem = loadDecorativeItem(confirmSection, "fill_item");
         }
+
+        compileSlotRoles();
+    }
+
+    private void compileSlotRoles() {
+        SlotRole[] marketRoles = new SlotRole[guiRows * 9];
+        Arrays.fill(marketRoles, SlotRole.EMPTY);
+        marketSlotToYmlKey.keySet().forEach(slot -> setSlotRole(marketRoles, slot, SlotRole.MARKET_ITEM));
+        for (DecorativeItemConfig decoItem : decorativeItems) {
+            decoItem.slots.forEach(slot -> setSlotRole(marketRoles, slot, SlotRole.DECORATIVE));
+        }
+        marketSlotRoles = marketRoles;
+
+        SlotRole[] confirmationRoles = new SlotRole[Math.max(0, confirmationMenuRows) * 9];
+        Arrays.fill(confirmationRoles, SlotRole.EMPTY);
+        setSlotRole(confirmationRoles, confirmationMenuItemDisplaySlot, SlotRole.DISPLAY);
+        if (confirmationMenuConfirmButton != null && !confirmationMenuConfirmButton.slots.isEmpty()) {
+            setSlotRole(confirmationRoles, confirmationMenuConfirmButton.slots.get(0), SlotRole.CONFIRM);
+        }
+        if (confirmationMenuCancelButton != null && !confirmationMenuCancelButton.slots.isEmpty()) {
+            setSlotRole(confirmationRoles, confirmationMenuCancelButton.slots.get(0), SlotRole.CANCEL);
+        }
+        if (confirmationMenuFillItem != null) {
+            confirmationMenuFillItem.slots.forEach(slot -> setSlotRole(confirmationRoles, slot, SlotRole.DECORATIVE));
+        }
+        confirmationSlotRoles = confirmationRoles;
+    }
+
+    private static void setSlotRole(SlotRole[] roles, int slot, SlotRole role) {
+        if (slot >= 0 && slot < roles.length) {
+            roles[slot] = role;
+        }
     }
 
     private DecorativeItemConfig loadDecorativeItem(ConfigurationSection section, String key) {
@@ -335,6 +413,14 @@ public class ConfigManager {
         loadGeneralConfig();
         loadGuiConfig();
         plugin.getItemManager().loadItems();
+        configVersion++;
+    }
+
+    /**
+     * @return A number that changes whenever the configuration is reloaded.
+     */
+    public int getConfigVersion() {
+        return configVersion;
     }
 
     public void playSound(Player player, SoundConfig soundConfig) {
@@ -342,16 +428,31 @@ public class ConfigManager {
         player.playSound(player.getLocation(), soundConfig.sound(), soundConfig.volume(), soundConfig.pitch());
     }
 
-    public ItemStack getGlobalPlaceholderItem() { return createDisplayItem(globalPlaceholderMaterial, globalPlaceholderName, globalPlaceholderLore); }
-    public ItemStack getGlobalPurchasedItemDisplay() { return createDisplayItem(globalPurchasedItemMaterial, globalPurchasedItemName, globalPurchasedItemLore); }
-    public ItemStack getGlobalOutOfStockItemDisplay() { return createDisplayItem(globalOutOfStockItemMaterial, globalOutOfStockItemName, globalOutOfStockItemLore); }
+    public ItemStack getGlobalPlaceholderItem() { return globalPlaceholderItem.clone(); }
+    public ItemStack getGlobalPurchasedItemDisplay() { return globalPurchasedItemDisplay.clone(); }
+    public ItemStack getGlobalOutOfStockItemDisplay() { return globalOutOfStockItemDisplay.clone(); }
+
+    /**
+     * @return Which of the market's stand-in items this is, or null if it is not one of them.
+     */
+    public MarketDisplay getMarketDisplay(ItemStack item) {
+        if (item == null || !item.hasItemMeta()) return null;
+        String value = item.getItemMeta().getPersistentDataContainer().get(marketDisplayKey, PersistentDataType.STRING);
+        if (value == null) return null;
+        try {
+            return MarketDisplay.valueOf(value);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
 
-    private ItemStack createDisplayItem(Material material, String name, List<String> lore) {
+    private ItemStack createDisplayItem(Material material, String name, List<String> lore, MarketDisplay marker) {
         ItemStack item = new ItemStack(material);
         ItemMeta meta = item.getItemMeta();
         if (meta != null) {
             meta.setDisplayName(name);
             meta.setLore(lore);
+            meta.getPersistentDataContainer().set(marketDisplayKey, PersistentDataType.STRING, marker.name());
             item.setItemMeta(meta);
         }
         return item;
@@ -359,6 +460,7 @@ public class ConfigManager {
 
     public long getOpenDurationSeconds() { return openDurationSeconds; }
     public long getCloseDurationSeconds() { return closeDurationSeconds; }
+    public long getPrepareBeforeOpenSeconds() { return prepareBeforeOpenSeconds; }
     public List<String> getMarketOpenBroadcast() { return new ArrayList<>(marketOpenBroadcast); }
     public List<String> getMarketCloseBroadcast() { return new ArrayList<>(marketCloseBroadcast); }
     public List<String> getForceOpenMessage() { return new ArrayList<>(forceOpenMessage); }
@@ -368,6 +470,13 @@ public class ConfigManager {
     public boolean isCheckUpdatesEnabled() { return checkUpdates; }
     public StockMode getStockMode() { return stockMode; }
     public int getNumberOfGlobalItemsToShow() { return numberOfGlobalItemsToShow; } // <-- NEW GETTER
+    public long getStateSaveDelayTicks() { return stateSaveDelayTicks; }
+    public StateFormat getStateFormat() { return stateFormat; }
+    public boolean isJournalEnabled() { return journalEnabled; }
+    public boolean isJournalFsync() { return journalFsync; }
+    public long getJournalCompactThresholdBytes() { return journalCompactThresholdBytes; }
+    public boolean isMappedStock() { return mappedStock; }
+    public boolean isSeededAssignments() { return seededAssignments; }
 
     public String getPlaceholderOpenText() { return placeholderOpenText; }
     public String getPlaceholderClosedText() { return placeholderClosedText; }
@@ -377,7 +486,9 @@ public class ConfigManager {
     public Map<Integer, String> getMarketSlotMappings() { return new HashMap<>(marketSlotToYmlKey); }
     public List<DecorativeItemConfig> getDecorativeItems() { return new ArrayList<>(decorativeItems); }
     public String getYmlKeyForGuiSlot(int guiSlot) { return marketSlotToYmlKey.get(guiSlot); }
-    public boolean isMarketItemSlot(int guiSlot) { return marketSlotToYmlKey.containsKey(guiSlot); }
+    public boolean isMarketItemSlot(int guiSlot) { return getMarketSlotRole(guiSlot) == SlotRole.MARKET_ITEM; }
+    public SlotRole getMarketSlotRole(int guiSlot) { return guiSlot >= 0 && guiSlot < marketSlotRoles.length ? marketSlotRoles[guiSlot] : SlotRole.EMPTY; }
+    public SlotRole getConfirmationSlotRole(int slot) { return slot >= 0 && slot < confirmationSlotRoles.length ? confirmationSlotRoles[slot] : SlotRole.EMPTY; }
 
     public String getMsgNoPermission() { return msgNoPermission; }
     public String getMsgNoPermissionOpen() { return msgNoPermissionOpen; }
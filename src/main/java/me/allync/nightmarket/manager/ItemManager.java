@@ -1,6 +1,9 @@
 package me.allync.nightmarket.manager;
 
 import me.allync.nightmarket.NightMarket;
+import me.allync.nightmarket.util.AliasTable;
+import me.allync.nightmarket.util.LoreTemplate;
+import me.allync.nightmarket.util.WeightedSampler;
 import org.bukkit.ChatColor;
 import org.bukkit.Material;
 import org.bukkit.Sound;
@@ -15,20 +18,35 @@ import org.bukkit.inventory.meta.ItemMeta;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.NavigableMap;
 import java.util.Objects;
 import java.util.Random;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 public class ItemManager {
 
     private final NightMarket plugin;
     private final List<ConfiguredItem> allPossibleItems = new ArrayList<>();
-    private final NavigableMap<Double, ConfiguredItem> weightedItems = new TreeMap<>();
-    private double totalWeight = 0.0;
+    // Every key gets a dense ID the first time it is seen. IDs are kept across reloads, so state indexed by ID stays
+    // valid for as long as the plugin runs; items removed by a reload just leave their ID unused.
+    private final ConcurrentHashMap<String, Integer> itemIds = new ConcurrentHashMap<>();
+    private final List<String> itemIdKeys = new ArrayList<>();
+    private volatile ConfiguredItem[] itemsById = new ConfiguredItem[0];
+    private volatile Map<String, ConfiguredItem> itemsByKey = Collections.emptyMap();
+    // Built once per load, so drawing from a whole pool is constant time.
+    private AliasTable<ConfiguredItem> allItemsTable;
+    private AliasTable<ConfiguredItem> personalItemsTable;
+    // Copied for every selection of several distinct items.
+    private WeightedSampler<ConfiguredItem> globalItemsSampler;
+    private WeightedSampler<ConfiguredItem> personalItemsSampler;
+    // Each item's lore with its price line filled in, indexed by ID * 2 + (discounted ? 1 : 0). Null for items without lore.
+    private volatile LoreTemplate[] loreTemplates = new LoreTemplate[0];
+    // Bumped every time the tables are rebuilt, so work based on an older catalog can tell it is stale.
+    private volatile int catalogVersion;
     private final Random random = new Random();
 
     private boolean rerollItemEnabled;
@@ -50,8 +68,7 @@ public class ItemManager {
         }
         FileConfiguration itemsConfig = YamlConfiguration.loadConfiguration(itemsFile);
         allPossibleItems.clear();
-        weightedItems.clear();
-        totalWeight = 0.0;
+        buildItemTables();
         rerollItem = null;
         rerollEffectConfig = null;
         rerollItemEnabled = false;
@@ -147,12 +164,9 @@ public class ItemManager {
                     }
 
                     List<String> commands = itemDetails.getStringList("commands_on_click");
-                    ConfiguredItem configuredItem = new ConfiguredItem(itemKey, displayItem, commands, price, requiredItems, chance, stock, discountChance, discountPercentage, permissionNode, invertPermission, isGlobal);
+                    ConfiguredItem configuredItem = new ConfiguredItem(itemKey, displayItem, commands, price, requiredItems, chance, stock, discountChance, discountPercentage, permissionNode, invertPermission, isGlobal, getItemId(itemKey));
                     allPossibleItems.add(configuredItem);
 
-                    totalWeight += chance;
-                    weightedItems.put(totalWeight, configuredItem);
-
                 } catch (Exception e) {
                     plugin.getLogger().warning("Failed to load item '" + itemKey + "' from items.yml. Error: " + e.getMessage());
                     e.printStackTrace();
@@ -160,6 +174,8 @@ public class ItemManager {
             }
         }
 
+        buildItemTables();
+
         if (allPossibleItems.isEmpty()) {
             plugin.getLogger().warning("No valid items loaded from items.yml. The Night Market will be empty.");
         } else {
@@ -167,6 +183,80 @@ public class ItemManager {
         }
     }
 
+    private void buildItemTables() {
+        Map<String, ConfiguredItem> byKey = new HashMap<>(allPossibleItems.size() * 2);
+        ConfiguredItem[] byId = new ConfiguredItem[getItemIdCount()];
+        for (ConfiguredItem item : allPossibleItems) {
+            byKey.put(item.getKey(), item);
+            byId[item.getId()] = item;
+        }
+        itemsByKey = byKey;
+        itemsById = byId;
+
+        List<ConfiguredItem> globalItems = allPossibleItems.stream().filter(ConfiguredItem::isGlobal).collect(Collectors.toList());
+        List<ConfiguredItem> personalItems = allPossibleItems.stream().filter(item -> !item.isGlobal()).collect(Collectors.toList());
+        allItemsTable = AliasTable.build(allPossibleItems, ConfiguredItem::getChance);
+        personalItemsTable = AliasTable.build(personalItems, ConfiguredItem::getChance);
+        globalItemsSampler = WeightedSampler.build(globalItems, ConfiguredItem::getChance);
+        personalItemsSampler = WeightedSampler.build(personalItems, ConfiguredItem::getChance);
+
+        LoreTemplate[] templates = new LoreTemplate[byId.length * 2];
+        for (ConfiguredItem item : allPossibleItems) {
+            templates[item.getId() * 2] = compileLore(item.getMarketItem(false));
+            templates[item.getId() * 2 + 1] = compileLore(item.getMarketItem(true));
+        }
+        loreTemplates = templates;
+        catalogVersion++;
+    }
+
+    /**
+     * @return The lore of the item's display item, with the price line resolved for this variant and %stock% left
+     * as the only placeholder, or null if the display item has no lore.
+     */
+    private LoreTemplate compileLore(PlayerMarketItem playerMarketItem) {
+        ConfiguredItem baseItem = playerMarketItem.getBaseItem();
+        ItemMeta meta = baseItem.getDisplayItem().getItemMeta();
+        if (meta == null || !meta.hasLore()) {
+            return null;
+        }
+
+        String priceLine;
+        if (playerMarketItem.isDiscounted()) {
+            priceLine = pricePlaceholderConfig.discounted()
+                    .replace("%original_price%", String.format("%,.0f", baseItem.getPrice()));
+        } else {
+            priceLine = pricePlaceholderConfig.normal();
+        }
+        priceLine = priceLine.replace("%final_price%", String.format("%,.0f", playerMarketItem.getFinalPrice()));
+
+        List<String> lines = new ArrayList<>();
+        for (String line : meta.getLore()) {
+            if (line.contains("%price_placeholder%")) {
+                // Items paid for with other items have no money price to show.
+                if (!baseItem.hasItemPrice()) {
+                    lines.add(priceLine);
+                }
+            } else {
+                lines.add(line);
+            }
+        }
+        return LoreTemplate.compile(lines, "%stock%");
+    }
+
+    /**
+     * @return The compiled lore for this assignment, or null if its display item has no lore.
+     */
+    public LoreTemplate getLoreTemplate(PlayerMarketItem playerMarketItem) {
+        ConfiguredItem baseItem = playerMarketItem.getBaseItem();
+        LoreTemplate[] templates = loreTemplates;
+        int index = baseItem.getId() * 2 + (playerMarketItem.isDiscounted() ? 1 : 0);
+        if (playerMarketItem == baseItem.getMarketItem(playerMarketItem.isDiscounted()) && baseItem.getId() >= 0 && index < templates.length) {
+            return templates[index];
+        }
+        // Not one of the shared variants, e.g. a stored assignment whose price has changed since.
+        return compileLore(playerMarketItem);
+    }
+
     private void loadPricePlaceholders(FileConfiguration itemsConfig) {
         String normalFormat = ChatColor.translateAlternateColorCodes('&', itemsConfig.getString("price-placeholders.normal", "&ePrice: &6%final_price%"));
         String discountedFormat = ChatColor.translateAlternateColorCodes('&', itemsConfig.getString("price-placeholders.discounted", "&ePrice: &m%original_price%&r &a%final_price%"));
@@ -246,19 +336,44 @@ public class ItemManager {
     public ConfiguredItem getRandomWeightedItemFromList(List<ConfiguredItem> items) {
         if (items == null || items.isEmpty()) return null;
 
-        NavigableMap<Double, ConfiguredItem> tempWeightedMap = new TreeMap<>();
         double tempTotalWeight = 0.0;
-
         for (ConfiguredItem item : items) {
             tempTotalWeight += item.getChance();
-            tempWeightedMap.put(tempTotalWeight, item);
         }
 
         if (tempTotalWeight == 0) return null;
 
         double randomValue = random.nextDouble() * tempTotalWeight;
-        Map.Entry<Double, ConfiguredItem> entry = tempWeightedMap.higherEntry(randomValue);
-        return (entry != null) ? entry.getValue() : null;
+        for (ConfiguredItem item : items) {
+            randomValue -= item.getChance();
+            if (randomValue < 0) {
+                return item;
+            }
+        }
+        return items.get(items.size() - 1);
+    }
+
+    /**
+     * Gets a random weighted item from the items that are not global, in constant time.
+     * @param random The random source to draw from.
+     * @return A random personal ConfiguredItem or null if there are none.
+     */
+    public ConfiguredItem getRandomPersonalItem(Random random) {
+        return personalItemsTable.sample(random);
+    }
+
+    /**
+     * @return A fresh sampler over the global items, for drawing several distinct ones.
+     */
+    public WeightedSampler<ConfiguredItem> newGlobalItemSampler() {
+        return globalItemsSampler.copy();
+    }
+
+    /**
+     * @return A fresh sampler over the personal items, for drawing several distinct ones.
+     */
+    public WeightedSampler<ConfiguredItem> newPersonalItemSampler() {
+        return personalItemsSampler.copy();
     }
 
 
@@ -267,10 +382,7 @@ public class ItemManager {
      * @return A random ConfiguredItem or null if the list is empty.
      */
     public ConfiguredItem getRandomWeightedItem() {
-        if (weightedItems.isEmpty()) return null;
-        double randomValue = random.nextDouble() * totalWeight;
-        Map.Entry<Double, ConfiguredItem> entry = weightedItems.higherEntry(randomValue);
-        return (entry != null) ? entry.getValue() : null;
+        return allItemsTable.sample(random);
     }
 
 
@@ -285,7 +397,66 @@ public class ItemManager {
 
     public ConfiguredItem getItemByKey(String key) {
         if (key == null) return null;
-        return allPossibleItems.stream().filter(item -> key.equals(item.getKey())).findFirst().orElse(null);
+        return itemsByKey.get(key);
+    }
+
+    /**
+     * Gets the ID of an item key, handing out the next free ID if the key has not been seen yet. Works for keys that
+     * are not in items.yml (any more), so state for them can still be indexed by ID.
+     * @param key The item key.
+     * @return The key's ID, from 0 to {@link #getItemIdCount()} - 1.
+     */
+    public int getItemId(String key) {
+        Integer id = itemIds.get(key);
+        if (id != null) return id;
+        synchronized (itemIdKeys) {
+            return itemIds.computeIfAbsent(key, k -> {
+                itemIdKeys.add(k);
+                return itemIdKeys.size() - 1;
+            });
+        }
+    }
+
+    /**
+     * @return The key's ID, or -1 if no ID has been handed out for it.
+     */
+    public int findItemId(String key) {
+        if (key == null) return -1;
+        Integer id = itemIds.get(key);
+        return id != null ? id : -1;
+    }
+
+    /**
+     * @return The key the ID was handed out for.
+     */
+    public String getItemKey(int id) {
+        synchronized (itemIdKeys) {
+            return itemIdKeys.get(id);
+        }
+    }
+
+    /**
+     * @return One more than the highest ID handed out so far.
+     */
+    public int getItemIdCount() {
+        synchronized (itemIdKeys) {
+            return itemIdKeys.size();
+        }
+    }
+
+    /**
+     * @return A number that changes whenever the items are reloaded.
+     */
+    public int getCatalogVersion() {
+        return catalogVersion;
+    }
+
+    /**
+     * @return The loaded item with this ID, or null if the ID is unknown or its item is not in items.yml any more.
+     */
+    public ConfiguredItem getItemById(int id) {
+        ConfiguredItem[] items = itemsById;
+        return id >= 0 && id < items.length ? items[id] : null;
     }
 
     public boolean isRerollItemEnabled() { return rerollItemEnabled; }
@@ -318,6 +489,24 @@ public class ItemManager {
             this.finalPrice = finalPrice;
         }
 
+        /**
+         * Rolls the discount like {@link #PlayerMarketItem(ConfiguredItem, Random)}, but returns the item's shared
+         * instance for the result instead of allocating one.
+         */
+        public static PlayerMarketItem roll(ConfiguredItem baseItem, Random random) {
+            boolean discounted = baseItem.getDiscountChance() > 0 && random.nextDouble() * 100 < baseItem.getDiscountChance();
+            return baseItem.getMarketItem(discounted);
+        }
+
+        /**
+         * @return The item's shared instance for a stored assignment, or a new one if the stored price no longer
+         * matches the item's current price.
+         */
+        public static PlayerMarketItem of(ConfiguredItem baseItem, boolean isDiscounted, double finalPrice) {
+            PlayerMarketItem shared = baseItem.getMarketItem(isDiscounted);
+            return Double.compare(shared.finalPrice, finalPrice) == 0 ? shared : new PlayerMarketItem(baseItem, isDiscounted, finalPrice);
+        }
+
         public ConfiguredItem getBaseItem() { return baseItem; }
         public boolean isDiscounted() { return isDiscounted; }
         public double getFinalPrice() { return finalPrice; }
@@ -355,8 +544,16 @@ public class ItemManager {
         private final String permissionNode;
         private final boolean invertPermission;
         private final boolean isGlobal;
+        private final int id;
+        // Every assignment of this item is one of these two; they are shared instead of allocated per slot.
+        private final PlayerMarketItem regularMarketItem;
+        private final PlayerMarketItem discountedMarketItem;
 
         public ConfiguredItem(String key, ItemStack displayItem, List<String> commandsOnClick, double price, List<RequiredItem> requiredItems, double chance, int initialStock, double discountChance, double discountPercentage, String permissionNode, boolean invertPermission, boolean isGlobal) {
+            this(key, displayItem, commandsOnClick, price, requiredItems, chance, initialStock, discountChance, discountPercentage, permissionNode, invertPermission, isGlobal, -1);
+        }
+
+        public ConfiguredItem(String key, ItemStack displayItem, List<String> commandsOnClick, double price, List<RequiredItem> requiredItems, double chance, int initialStock, double discountChance, double discountPercentage, String permissionNode, boolean invertPermission, boolean isGlobal, int id) {
             this.key = key;
             this.displayItem = displayItem;
             this.commandsOnClick = commandsOnClick;
@@ -369,6 +566,9 @@ public class ItemManager {
             this.permissionNode = permissionNode;
             this.invertPermission = invertPermission;
             this.isGlobal = isGlobal;
+            this.id = id;
+            this.regularMarketItem = new PlayerMarketItem(this, false, price);
+            this.discountedMarketItem = new PlayerMarketItem(this, true, price * (1 - (discountPercentage / 100.0)));
         }
 
         public boolean hasItemPrice() {
@@ -395,6 +595,9 @@ public class ItemManager {
         public String getPermissionNode() { return permissionNode; }
         public boolean isPermissionInverted() { return invertPermission; }
         public boolean isGlobal() { return isGlobal; }
+        /** The item's ID from {@link ItemManager#getItemId(String)}, or -1 if it was not created by the ItemManager. */
+        public int getId() { return id; }
+        public PlayerMarketItem getMarketItem(boolean discounted) { return discounted ? discountedMarketItem : regularMarketItem; }
 
         @Override
         public boolean equals(Object o) {
@@ -3,10 +3,15 @@ package me.allync.nightmarket.manager;
 import me.allync.nightmarket.NightMarket;
 import me.allync.nightmarket.api.events.MarketCloseEvent;
 import me.allync.nightmarket.api.events.MarketOpenEvent;
+import me.allync.nightmarket.storage.JournalRecord;
+import me.allync.nightmarket.storage.MappedStockTable;
+import me.allync.nightmarket.storage.MarketJournal;
+import me.allync.nightmarket.storage.MarketStatePersistence;
+import me.allync.nightmarket.storage.MarketStateSnapshot;
+import me.allync.nightmarket.storage.MarketStateStore;
+import me.allync.nightmarket.storage.StateFormat;
+import me.allync.nightmarket.util.WeightedSampler;
 import org.bukkit.Bukkit;
-import org.bukkit.configuration.ConfigurationSection;
-import org.bukkit.configuration.file.FileConfiguration;
-import org.bukkit.configuration.file.YamlConfiguration;
 import org.bukkit.entity.Player;
 import org.bukkit.scheduler.BukkitRunnable;
 import org.bukkit.scheduler.BukkitTask;
@@ -14,14 +19,21 @@ import org.bukkit.scheduler.BukkitTask;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntConsumer;
+import java.util.logging.Level;
 import java.util.stream.Collectors;
 
 public class MarketManager {
@@ -33,8 +45,11 @@ public class MarketManager {
     private final List<BukkitTask> announcementTasks = new ArrayList<>();
     private final Random random = new Random();
 
-    private final File marketStateFile;
-    private FileConfiguration marketStateConfig;
+    private final StateFormat stateFormat;
+    private final MarketStateStore stateStore;
+    private final MarketStatePersistence persistence;
+    private final MarketJournal journal;
+    private final MappedStockTable stockTable;
 
     private final ConcurrentHashMap<Integer, ItemManager.PlayerMarketItem> globalAssignedItems = new ConcurrentHashMap<>();
 
@@ -42,25 +57,134 @@ public class MarketManager {
     private final ConcurrentHashMap<UUID, Set<String>> playerPurchasedItemKeys = new ConcurrentHashMap<>(); // Used for GLOBAL stock mode
     private final ConcurrentHashMap<UUID, ConcurrentHashMap<String, Integer>> playerPurchaseCounts = new ConcurrentHashMap<>(); // Used for PLAYER stock mode
     private final ConcurrentHashMap<UUID, Set<Integer>> playerRevealedSlots = new ConcurrentHashMap<>();
-    private final ConcurrentHashMap<String, Integer> globalItemStock = new ConcurrentHashMap<>();
+    // Remaining global stock indexed by item ID (see ItemManager#getItemId), NO_STOCK for items without an entry.
+    // Only written on the main thread; the array is replaced, never shrunk, when new IDs appear.
+    private static final int NO_STOCK = Integer.MIN_VALUE;
+    private volatile int[] globalItemStock = new int[0];
+    // Bumped on every change to globalItemStock, so anything derived from the stock can tell it is out of date.
+    private volatile long stockVersion;
+    // Told the item ID whenever a purchase changes an item's global stock.
+    private IntConsumer stockChangeListener = itemId -> {};
+
+    // Non-zero when this cycle's personal assignments are derived from a seed instead of stored. Derived assignments
+    // live in playerAssignedItems like stored ones, but are never saved; only the reroll counts are.
+    private long cycleSeed;
+    private final ConcurrentHashMap<UUID, Integer> playerRerolls = new ConcurrentHashMap<>();
+    private final Set<UUID> derivedPlayers = ConcurrentHashMap.newKeySet();
+
+    // Bumped by every cycle reset. Stored player data from another epoch is treated as empty, so a reset never has to
+    // touch the players on record; the persistence layer sweeps their old data in the background.
+    private volatile long cycleEpoch;
+
+    // The next cycle, built in the background near the end of the closed phase and swapped in when the market opens.
+    private CompletableFuture<PreparedCycle> preparedCycle;
+
+    private record PreparedCycle(int catalogVersion, List<Integer> slots, int globalItemCount, long cycleSeed,
+                                 Map<Integer, ItemManager.PlayerMarketItem> globalItems, int[] stock,
+                                 Map<UUID, Map<Integer, ItemManager.PlayerMarketItem>> playerItems) {}
+
+    // Player data is only held for players in loadedPlayers: online players, plus players touched by journal replay
+    // during startup. Everyone else lives in the store until they join again.
+    private final Set<UUID> loadedPlayers = ConcurrentHashMap.newKeySet();
+    private final ConcurrentHashMap<UUID, PreloadedPlayer> preloadedPlayers = new ConcurrentHashMap<>();
+    // Bumped for a player whenever their stored data may change underneath a preload, so only that player's stale
+    // preload is discarded on join. Cleared with the epoch, which preloads are checked against as well.
+    private final ConcurrentHashMap<UUID, Long> playerDataGenerations = new ConcurrentHashMap<>();
+    // Joined players whose data is still being read because no preload was usable. They are already in loadedPlayers.
+    private final Map<UUID, CompletableFuture<Void>> pendingLoads = new HashMap<>();
+    // Set while the state is being loaded, when resets must not be journaled: the journal is truncated or replayed next.
+    private boolean loadingState;
+
+    private static final MarketStateSnapshot.PlayerState EMPTY_PLAYER_STATE = new MarketStateSnapshot.PlayerState(
+            Collections.emptyMap(), Collections.emptySet(), Collections.emptySet(), Collections.emptyMap());
+
+    private record PreloadedPlayer(long epoch, long generation, MarketStateSnapshot.PlayerState state) {}
+
+    // What changed since the last snapshot. Saves only re-encode these; everything else is already in the store.
+    private final Set<UUID> dirtyPlayers = ConcurrentHashMap.newKeySet();
+
+    // Stamps of the last change to each loaded player's market, and to what every player shares (the global items and
+    // any reset). All come from one counter, so the higher of a player's two stamps changes whenever their market does.
+    private final AtomicLong stateVersions = new AtomicLong();
+    private final ConcurrentHashMap<UUID, Long> playerStateVersions = new ConcurrentHashMap<>();
+    private volatile long sharedStateVersion;
+    private boolean globalItemsDirty = true;
+    private boolean globalStockDirty = true;
+    private Map<Integer, MarketStateSnapshot.StoredItem> storedGlobalItems = Collections.emptyMap();
 
 
     public MarketManager(NightMarket plugin) {
         this.plugin = plugin;
-        this.marketStateFile = new File(plugin.getDataFolder(), "market_state.yml");
+        ConfigManager configManager = plugin.getConfigManager();
+        this.stateFormat = configManager.getStateFormat();
+        this.stateStore = stateFormat.createStore(plugin.getDataFolder(), plugin.getLogger());
+        this.persistence = new MarketStatePersistence(plugin, stateStore, this::createSnapshot);
+
+        if (configManager.isJournalEnabled()) {
+            this.journal = new MarketJournal(plugin.getLogger(), new File(plugin.getDataFolder(), "market_state.journal"),
+                    configManager.isJournalFsync(), configManager.getJournalCompactThresholdBytes(),
+                    () -> Bukkit.getScheduler().runTask(plugin, this::saveMarketState));
+            this.persistence.setSaveListener(snapshot -> journal.compact(snapshot.getJournalSequence()));
+        } else {
+            this.journal = null;
+        }
+
+        File stockFile = new File(plugin.getDataFolder(), "market_stock.dat");
+        this.stockTable = configManager.isMappedStock() ? openStockTable(stockFile) : null;
+        // A table left over from when the option was enabled would be older than the market state.
+        if (stockTable == null && stockFile.delete()) {
+            plugin.getLogger().info("Removed " + stockFile.getName() + " because storage.mapped_stock is disabled.");
+        }
+    }
+
+    private MappedStockTable openStockTable(File file) {
+        List<String> itemKeys = plugin.getItemManager().getAllPossibleItems().stream()
+                .map(ItemManager.ConfiguredItem::getKey)
+                .collect(Collectors.toList());
+        try {
+            return MappedStockTable.open(file, itemKeys, plugin.getLogger());
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.SEVERE, "Could not open " + file.getName() + ". Global stock will only be kept in the market state.", e);
+            return null;
+        }
     }
 
     public void loadMarketState() {
-        if (!marketStateFile.exists()) {
+        loadingState = true;
+        try {
+            loadState();
+        } finally {
+            loadingState = false;
+        }
+        for (Player player : Bukkit.getOnlinePlayers()) {
+            loadPlayerData(player.getUniqueId());
+        }
+        // Players loaded from a legacy state file or by journal replay are written to their own files and released.
+        for (UUID playerUUID : new ArrayList<>(loadedPlayers)) {
+            if (Bukkit.getPlayer(playerUUID) == null) {
+                unloadPlayerData(playerUUID);
+            }
+        }
+        plugin.getLogger().info("Market state loaded: Open=" + marketOpen + ", Time Remaining=" + formatTime(timeRemainingSeconds));
+        scheduleAnnouncements();
+    }
+
+    private void loadState() {
+        MarketStateStore source = findStoredState();
+        boolean imported = source != null && source != stateStore;
+        MarketStateSnapshot snapshot = source != null ? readStoredState(source) : null;
+        if (snapshot == null) {
             this.marketOpen = false;
             this.timeRemainingSeconds = plugin.getConfigManager().getCloseDurationSeconds();
+            // Any player files left behind belong to a cycle that can no longer be identified.
+            persistence.clearPlayers();
+            clearAllPlayerData();
+            openJournal(0L, true);
             saveMarketState();
         } else {
-            marketStateConfig = YamlConfiguration.loadConfiguration(marketStateFile);
-            this.marketOpen = marketStateConfig.getBoolean("market_open", false);
-            long lastSavedTime = marketStateConfig.getLong("last_saved_timestamp", System.currentTimeMillis() / 1000);
-            long timePassed = (System.currentTimeMillis() / 1000) - lastSavedTime;
-            long savedTimeRemaining = marketStateConfig.getLong("time_remaining_seconds");
+            this.marketOpen = snapshot.isMarketOpen();
+            long timePassed = (System.currentTimeMillis() / 1000) - snapshot.getSavedTimestamp();
+            long savedTimeRemaining = snapshot.getTimeRemainingSeconds();
 
             if (timePassed >= savedTimeRemaining) {
                 if (marketOpen) {
@@ -73,201 +197,419 @@ public class MarketManager {
                 }
                 clearAllPlayerData();
                 resetGlobalStock();
+                // Journal records belong to the cycle that just ended.
+                openJournal(snapshot.getJournalSequence(), true);
+                saveMarketState();
                 plugin.getLogger().info("Market cycle changed due to time expiry. Player data and global stock reset.");
 
             } else {
                 this.timeRemainingSeconds = savedTimeRemaining - timePassed;
-                clearAllPlayerData();
+                applySnapshot(snapshot);
 
-                ConfigurationSection globalItemsSection = marketStateConfig.getConfigurationSection("global_assigned_items");
-                if (globalItemsSection != null) {
-                    ItemManager itemManager = plugin.getItemManager();
-                    for (String slotString : globalItemsSection.getKeys(false)) {
-                        int slot = Integer.parseInt(slotString);
-                        ConfigurationSection itemDataSection = globalItemsSection.getConfigurationSection(slotString);
-                        if (itemDataSection != null) {
-                            String itemKey = itemDataSection.getString("key");
-                            boolean isDiscounted = itemDataSection.getBoolean("discounted");
-                            double finalPrice = itemDataSection.getDouble("price");
-
-                            ItemManager.ConfiguredItem baseItem = itemManager.getItemByKey(itemKey);
-                            if (baseItem != null) {
-                                ItemManager.PlayerMarketItem pmi = new ItemManager.PlayerMarketItem(baseItem, isDiscounted, finalPrice);
-                                globalAssignedItems.put(slot, pmi);
-                            }
-                        }
+                if (journal != null) {
+                    long lastSequence = journal.replay(snapshot.getJournalSequence(), this::applyJournalRecord);
+                    openJournal(lastSequence, false);
+                    if (lastSequence > snapshot.getJournalSequence()) {
+                        saveMarketState();
                     }
                 }
+                if (stockTable != null) {
+                    // The table is written on every stock change, so it is never behind the saved state or the journal.
+                    stockTable.getStoredValues().forEach(this::putStock);
+                }
+                if (imported || !snapshot.getPlayers().isEmpty()) {
+                    // Rewrite the imported or legacy state in the configured layout.
+                    saveMarketState();
+                }
+            }
+        }
 
+        if (stockTable != null) {
+            stockTable.setAll(getStockByKey());
+        }
+    }
 
-                ConfigurationSection purchasedSection = marketStateConfig.getConfigurationSection("player_purchases");
-                if (purchasedSection != null) {
-                    for (String uuidString : purchasedSection.getKeys(false)) {
-                        try {
-                            UUID playerUUID = UUID.fromString(uuidString);
-                            List<String> purchasedKeys = purchasedSection.getStringList(uuidString);
-                            playerPurchasedItemKeys.put(playerUUID, new HashSet<>(purchasedKeys));
-                        } catch (IllegalArgumentException e) {
-                            plugin.getLogger().warning("Invalid UUID string in market_state.yml under player_purchases: " + uuidString);
-                        }
-                    }
-                }
+    /**
+     * Finds the most recently written market state. This is normally the configured store, but after storage.format
+     * has been switched the newer state in the previous format is imported instead, so the current cycle carries over
+     * in either direction.
+     *
+     * @return The store to load from, or null if nothing has been saved yet.
+     */
+    private MarketStateStore findStoredState() {
+        MarketStateStore newest = stateStore.getLastModified() > 0 ? stateStore : null;
+        for (StateFormat other : StateFormat.values()) {
+            if (other == stateFormat) continue;
+            MarketStateStore otherStore = other.createStore(plugin.getDataFolder(), plugin.getLogger());
+            if (otherStore.getLastModified() > (newest != null ? newest.getLastModified() : 0L)) {
+                newest = otherStore;
+            }
+        }
+        return newest;
+    }
 
-                // Load PLAYER mode purchase data
-                ConfigurationSection purchaseCountsSection = marketStateConfig.getConfigurationSection("player_purchase_counts");
-                if (purchaseCountsSection != null) {
-                    for (String uuidString : purchaseCountsSection.getKeys(false)) {
-                        try {
-                            UUID playerUUID = UUID.fromString(uuidString);
-                            ConfigurationSection playerCounts = purchaseCountsSection.getConfigurationSection(uuidString);
-                            if (playerCounts != null) {
-                                ConcurrentHashMap<String, Integer> counts = new ConcurrentHashMap<>();
-                                for (String itemKey : playerCounts.getKeys(false)) {
-                                    counts.put(itemKey, playerCounts.getInt(itemKey));
-                                }
-                                playerPurchaseCounts.put(playerUUID, counts);
-                            }
-                        } catch (IllegalArgumentException e) {
-                            plugin.getLogger().warning("Invalid UUID string in market_state.yml under player_purchase_counts: " + uuidString);
-                        }
-                    }
-                }
+    /**
+     * @return The state held by {@code source}, or null if it could not be read.
+     */
+    private MarketStateSnapshot readStoredState(MarketStateStore source) {
+        try {
+            long started = System.nanoTime();
+            MarketStateSnapshot snapshot = source.load();
+            if (snapshot != null) {
+                plugin.getLogger().info("Read market state from " + source.getName() + " in " + (System.nanoTime() - started) / 1_000_000L + " ms ("
+                        + snapshot.getGlobalAssignedItems().size() + " global item(s), " + snapshot.getGlobalItemStock().size() + " stock entries, "
+                        + snapshot.getPlayers().size() + " player(s) in the state file).");
+            }
+            if (snapshot != null && source != stateStore) {
+                int players = importPlayers(source);
+                plugin.getLogger().info("Imported market state and " + players + " player(s) from " + source.getName() + " into " + stateStore.getName() + ".");
+            }
+            return snapshot;
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.SEVERE, "Could not read market state from " + source.getName() + ". A new market state will be started.", e);
+            return null;
+        } finally {
+            if (source != stateStore) {
+                source.close();
+            }
+        }
+    }
 
+    /**
+     * Copies every player's data from {@code source} into the configured store, then removes it from {@code source}.
+     *
+     * @return The number of players copied.
+     */
+    private int importPlayers(MarketStateStore source) throws IOException {
+        int imported = 0;
+        for (UUID playerUUID : source.getStoredPlayers()) {
+            MarketStateSnapshot.PlayerState state = source.loadPlayer(playerUUID);
+            if (state != null && !state.isEmpty()) {
+                stateStore.savePlayer(playerUUID, state);
+                imported++;
+            }
+        }
+        source.clearPlayers();
+        return imported;
+    }
 
-                ConfigurationSection revealedSection = marketStateConfig.getConfigurationSection("player_revealed_slots");
-                if (revealedSection != null) {
-                    for (String uuidString : revealedSection.getKeys(false)) {
-                        try {
-                            UUID playerUUID = UUID.fromString(uuidString);
-                            Set<Integer> revealed = new HashSet<>(revealedSection.getIntegerList(uuidString));
-                            playerRevealedSlots.put(playerUUID, revealed);
-                        } catch (IllegalArgumentException e) {
-                            plugin.getLogger().warning("Invalid UUID string in market_state.yml under player_revealed_slots: " + uuidString);
-                        }
-                    }
-                }
+    private void openJournal(long lastSequence, boolean truncate) {
+        if (journal != null) {
+            journal.open(lastSequence, truncate);
+        }
+    }
 
-                ConfigurationSection assignedSection = marketStateConfig.getConfigurationSection("player_assigned_items");
-                if (assignedSection != null) {
-                    ItemManager itemManager = plugin.getItemManager();
-                    for (String uuidString : assignedSection.getKeys(false)) {
-                        try {
-                            UUID playerUUID = UUID.fromString(uuidString);
-                            ConfigurationSection playerSection = assignedSection.getConfigurationSection(uuidString);
-                            if (playerSection != null) {
-                                ConcurrentHashMap<Integer, ItemManager.PlayerMarketItem> assignedItemsMap = new ConcurrentHashMap<>();
-                                for (String slotString : playerSection.getKeys(false)) {
-                                    int slot = Integer.parseInt(slotString);
-                                    ConfigurationSection itemDataSection = playerSection.getConfigurationSection(slotString);
-                                    if (itemDataSection != null) {
-                                        String itemKey = itemDataSection.getString("key");
-                                        boolean isDiscounted = itemDataSection.getBoolean("discounted");
-                                        double finalPrice = itemDataSection.getDouble("price");
-
-                                        ItemManager.ConfiguredItem baseItem = itemManager.getItemByKey(itemKey);
-                                        if (baseItem != null) {
-                                            ItemManager.PlayerMarketItem pmi = new ItemManager.PlayerMarketItem(baseItem, isDiscounted, finalPrice);
-                                            assignedItemsMap.put(slot, pmi);
-                                        }
-                                    }
-                                }
-                                playerAssignedItems.put(playerUUID, assignedItemsMap);
-                            }
-                        } catch (Exception e) {
-                            plugin.getLogger().log(java.util.logging.Level.WARNING, "Failed to load assigned items for a player in market_state.yml.", e);
-                        }
-                    }
+    private void applyJournalRecord(JournalRecord record) {
+        if (record.playerUUID() != null) {
+            if (loadedPlayers.add(record.playerUUID())) {
+                applyPlayerState(record.playerUUID(), loadStoredPlayer(record.playerUUID()));
+            }
+            markPlayerChanged(record.playerUUID());
+        }
+        switch (record.type()) {
+            case REVEAL -> playerRevealedSlots.computeIfAbsent(record.playerUUID(), k -> new HashSet<>()).add(record.slot());
+            case ASSIGN -> {
+                ItemManager.PlayerMarketItem pmi = toPlayerMarketItem(plugin.getItemManager(),
+                        new MarketStateSnapshot.StoredItem(record.itemKey(), record.flag(), record.price()));
+                if (pmi != null) {
+                    playerAssignedItems.computeIfAbsent(record.playerUUID(), k -> new ConcurrentHashMap<>()).put(record.slot(), pmi);
                 }
-
-                globalItemStock.clear();
-                ConfigurationSection stockSection = marketStateConfig.getConfigurationSection("global_item_stock");
-                if (stockSection != null) {
-                    for (String itemKey : stockSection.getKeys(false)) {
-                        globalItemStock.put(itemKey, stockSection.getInt(itemKey));
-                    }
+            }
+            case PURCHASE -> {
+                if (record.flag()) {
+                    playerPurchasedItemKeys.computeIfAbsent(record.playerUUID(), k -> new HashSet<>()).add(record.itemKey());
                 } else {
-                    resetGlobalStock();
+                    playerPurchaseCounts.computeIfAbsent(record.playerUUID(), k -> new ConcurrentHashMap<>())
+                            .merge(record.itemKey(), 1, Integer::sum);
+                }
+            }
+            case STOCK -> {
+                putStock(record.itemKey(), record.value());
+                globalStockDirty = true;
+            }
+            case RESET_PLAYER -> removePlayerData(record.playerUUID());
+            case PURCHASE_COUNT -> playerPurchaseCounts.computeIfAbsent(record.playerUUID(), k -> new ConcurrentHashMap<>())
+                    .put(record.itemKey(), record.value());
+            case REROLL -> {
+                removePlayerData(record.playerUUID());
+                playerRerolls.put(record.playerUUID(), record.value());
+            }
+            case RESET_CYCLE -> applyCycleReset(record);
+            case GLOBAL_ASSIGN -> {
+                ItemManager.PlayerMarketItem pmi = toPlayerMarketItem(plugin.getItemManager(),
+                        new MarketStateSnapshot.StoredItem(record.itemKey(), record.flag(), record.price()));
+                if (pmi != null) {
+                    globalAssignedItems.put(record.slot(), pmi);
+                    globalItemsDirty = true;
+                    touchSharedState();
                 }
             }
         }
-        plugin.getLogger().info("Market state loaded: Open=" + marketOpen + ", Time Remaining=" + formatTime(timeRemainingSeconds));
-        scheduleAnnouncements();
     }
 
-    public void saveMarketState() {
-        if (marketStateConfig == null) {
-            marketStateConfig = YamlConfiguration.loadConfiguration(marketStateFile);
-        }
-        marketStateConfig.set("market_open", this.marketOpen);
-        marketStateConfig.set("time_remaining_seconds", this.timeRemainingSeconds);
-        marketStateConfig.set("last_saved_timestamp", System.currentTimeMillis() / 1000);
-
-        // --- NEW: Save global items ---
-        marketStateConfig.set("global_assigned_items", null);
-        ConfigurationSection globalItemsSection = marketStateConfig.createSection("global_assigned_items");
-        for (Map.Entry<Integer, ItemManager.PlayerMarketItem> entry : globalAssignedItems.entrySet()) {
-            ConfigurationSection itemDataSection = globalItemsSection.createSection(String.valueOf(entry.getKey()));
-            ItemManager.PlayerMarketItem pmi = entry.getValue();
-            itemDataSection.set("key", pmi.getBaseItem().getKey());
-            itemDataSection.set("discounted", pmi.isDiscounted());
-            itemDataSection.set("price", pmi.getFinalPrice());
-        }
-
-
-        // Save GLOBAL mode data
-        marketStateConfig.set("player_purchases", null);
-        ConfigurationSection purchasedSection = marketStateConfig.createSection("player_purchases");
-        for (Map.Entry<UUID, Set<String>> entry : playerPurchasedItemKeys.entrySet()) {
-            if (!entry.getValue().isEmpty()) {
-                purchasedSection.set(entry.getKey().toString(), new ArrayList<>(entry.getValue()));
-            }
-        }
-
-        // Save PLAYER mode data
-        marketStateConfig.set("player_purchase_counts", null);
-        ConfigurationSection purchaseCountsSection = marketStateConfig.createSection("player_purchase_counts");
-        for (Map.Entry<UUID, ConcurrentHashMap<String, Integer>> entry : playerPurchaseCounts.entrySet()) {
-            if (!entry.getValue().isEmpty()) {
-                ConfigurationSection playerCountsSection = purchaseCountsSection.createSection(entry.getKey().toString());
-                for (Map.Entry<String, Integer> countEntry : entry.getValue().entrySet()) {
-                    playerCountsSection.set(countEntry.getKey(), countEntry.getValue());
+    /**
+     * Replays a cycle reset the snapshot did not see. Everything applied so far belongs to the previous cycle and is
+     * dropped; the global items of the new cycle follow as GLOBAL_ASSIGN records.
+     */
+    private void applyCycleReset(JournalRecord record) {
+        if (record.flag() && !marketOpen) {
+            timeRemainingSeconds = plugin.getConfigManager().getOpenDurationSeconds();
+        }
+        marketOpen = record.flag();
+        // Players replayed before the reset are released unsaved; records after it load them from the new epoch.
+        loadedPlayers.clear();
+        clearAllPlayerData(record.cycleSeed(), record.cycleEpoch());
+        resetGlobalStock();
+        plugin.getLogger().info("Replayed a market cycle reset the saved state predates. Records from the previous cycle were discarded.");
+    }
+
+    private void logChange(JournalRecord record) {
+        if (journal != null) {
+            journal.append(record);
+        }
+    }
+
+    private void applySnapshot(MarketStateSnapshot snapshot) {
+        ItemManager itemManager = plugin.getItemManager();
+        cycleSeed = snapshot.getCycleSeed();
+        cycleEpoch = snapshot.getCycleEpoch();
+
+        for (Map.Entry<Integer, MarketStateSnapshot.StoredItem> entry : snapshot.getGlobalAssignedItems().entrySet()) {
+            ItemManager.PlayerMarketItem pmi = toPlayerMarketItem(itemManager, entry.getValue());
+            if (pmi != null) {
+                globalAssignedItems.put(entry.getKey(), pmi);
+            }
+        }
+
+        // Only present in state files written before player data moved to per-player storage.
+        for (Map.Entry<UUID, MarketStateSnapshot.PlayerState> entry : snapshot.getPlayers().entrySet()) {
+            loadedPlayers.add(entry.getKey());
+            markPlayerChanged(entry.getKey());
+            applyPlayerState(entry.getKey(), entry.getValue());
+        }
+
+        globalItemStock = new int[0];
+        stockVersion++;
+        if (!snapshot.getGlobalItemStock().isEmpty()) {
+            snapshot.getGlobalItemStock().forEach(this::putStock);
+        } else {
+            resetGlobalStock();
+        }
+    }
+
+    private void applyPlayerState(UUID playerUUID, MarketStateSnapshot.PlayerState state) {
+        if (state == null) {
+            return;
+        }
+        if (state.getRerolls() > 0) {
+            playerRerolls.put(playerUUID, state.getRerolls());
+        }
+        if (!state.getPurchasedKeys().isEmpty()) {
+            playerPurchasedItemKeys.put(playerUUID, new HashSet<>(state.getPurchasedKeys()));
+        }
+        if (!state.getPurchaseCounts().isEmpty()) {
+            playerPurchaseCounts.put(playerUUID, new ConcurrentHashMap<>(state.getPurchaseCounts()));
+        }
+        if (!state.getRevealedSlots().isEmpty()) {
+            playerRevealedSlots.put(playerUUID, new HashSet<>(state.getRevealedSlots()));
+        }
+        if (!state.getAssignedItems().isEmpty()) {
+            ItemManager itemManager = plugin.getItemManager();
+            ConcurrentHashMap<Integer, ItemManager.PlayerMarketItem> assignedItemsMap = new ConcurrentHashMap<>();
+            for (Map.Entry<Integer, MarketStateSnapshot.StoredItem> itemEntry : state.getAssignedItems().entrySet()) {
+                ItemManager.PlayerMarketItem pmi = toPlayerMarketItem(itemManager, itemEntry.getValue());
+                if (pmi != null) {
+                    assignedItemsMap.put(itemEntry.getKey(), pmi);
                 }
             }
+            playerAssignedItems.put(playerUUID, assignedItemsMap);
         }
+    }
+
+    private ItemManager.PlayerMarketItem toPlayerMarketItem(ItemManager itemManager, MarketStateSnapshot.StoredItem storedItem) {
+        ItemManager.ConfiguredItem baseItem = itemManager.getItemByKey(storedItem.key());
+        if (baseItem == null) {
+            return null;
+        }
+        return ItemManager.PlayerMarketItem.of(baseItem, storedItem.discounted(), storedItem.price());
+    }
 
-        marketStateConfig.set("player_revealed_slots", null);
-        ConfigurationSection revealedSection = marketStateConfig.createSection("player_revealed_slots");
-        for (Map.Entry<UUID, Set<Integer>> entry : playerRevealedSlots.entrySet()) {
-            if (!entry.getValue().isEmpty()) {
-                revealedSection.set(entry.getKey().toString(), new ArrayList<>(entry.getValue()));
+    /**
+     * Copies the current market state into an immutable snapshot, with only the players and sections that changed
+     * since the previous snapshot marked for writing. Must be called from the main thread.
+     */
+    private MarketStateSnapshot createSnapshot() {
+        boolean globalItemsChanged = globalItemsDirty;
+        boolean globalStockChanged = globalStockDirty;
+        globalItemsDirty = false;
+        globalStockDirty = false;
+        if (globalItemsChanged) {
+            Map<Integer, MarketStateSnapshot.StoredItem> globalItems = new HashMap<>();
+            globalAssignedItems.forEach((slot, pmi) -> globalItems.put(slot, toStoredItem(pmi)));
+            storedGlobalItems = globalItems;
+        }
+
+        // Empty states are included so the store removes data that was reset.
+        Map<UUID, MarketStateSnapshot.PlayerState> players = new HashMap<>();
+        for (UUID playerUUID : dirtyPlayers) {
+            dirtyPlayers.remove(playerUUID);
+            if (loadedPlayers.contains(playerUUID)) {
+                players.put(playerUUID, createPlayerState(playerUUID));
             }
         }
 
-        marketStateConfig.set("player_assigned_items", null);
-        ConfigurationSection assignedSection = marketStateConfig.createSection("player_assigned_items");
-        for (Map.Entry<UUID, ConcurrentHashMap<Integer, ItemManager.PlayerMarketItem>> entry : playerAssignedItems.entrySet()) {
-            if (!entry.getValue().isEmpty()) {
-                ConfigurationSection playerSection = assignedSection.createSection(entry.getKey().toString());
-                for (Map.Entry<Integer, ItemManager.PlayerMarketItem> itemEntry : entry.getValue().entrySet()) {
-                    ConfigurationSection itemDataSection = playerSection.createSection(String.valueOf(itemEntry.getKey()));
-                    ItemManager.PlayerMarketItem pmi = itemEntry.getValue();
-                    itemDataSection.set("key", pmi.getBaseItem().getKey());
-                    itemDataSection.set("discounted", pmi.isDiscounted());
-                    itemDataSection.set("price", pmi.getFinalPrice());
+        long journalSequence = journal != null ? journal.getSequence() : 0L;
+        return new MarketStateSnapshot(marketOpen, timeRemainingSeconds, System.currentTimeMillis() / 1000, journalSequence, cycleSeed,
+                cycleEpoch, storedGlobalItems, getStockByKey(), players, globalItemsChanged, globalStockChanged);
+    }
+
+    private MarketStateSnapshot.PlayerState createPlayerState(UUID playerUUID) {
+        Map<Integer, MarketStateSnapshot.StoredItem> assigned = new HashMap<>();
+        ConcurrentHashMap<Integer, ItemManager.PlayerMarketItem> playerItems = playerAssignedItems.get(playerUUID);
+        if (playerItems != null && cycleSeed == 0) {
+            playerItems.forEach((slot, pmi) -> assigned.put(slot, toStoredItem(pmi)));
+        } else if (playerItems != null) {
+            // Derived items are only stored once revealed, so an items.yml reload cannot change what the player has seen.
+            Set<Integer> revealed = playerRevealedSlots.getOrDefault(playerUUID, Collections.emptySet());
+            playerItems.forEach((slot, pmi) -> {
+                if (revealed.contains(slot)) {
+                    assigned.put(slot, toStoredItem(pmi));
                 }
-            }
+            });
         }
+        return new MarketStateSnapshot.PlayerState(
+                assigned,
+                playerRevealedSlots.getOrDefault(playerUUID, Collections.emptySet()),
+                playerPurchasedItemKeys.getOrDefault(playerUUID, Collections.emptySet()),
+                playerPurchaseCounts.getOrDefault(playerUUID, new ConcurrentHashMap<>()),
+                playerRerolls.getOrDefault(playerUUID, 0),
+                cycleEpoch);
+    }
 
-        marketStateConfig.set("global_item_stock", null);
-        ConfigurationSection stockSection = marketStateConfig.createSection("global_item_stock");
-        for (Map.Entry<String, Integer> entry : globalItemStock.entrySet()) {
-            stockSection.set(entry.getKey(), entry.getValue());
+    /**
+     * Reads a player's stored data ahead of their join. Called from the async pre-login thread.
+     */
+    public void preloadPlayerData(UUID playerUUID) {
+        if (loadedPlayers.contains(playerUUID)) {
+            return;
         }
+        long epoch = cycleEpoch;
+        long generation = playerDataGenerations.getOrDefault(playerUUID, 0L);
+        MarketStateSnapshot.PlayerState state = persistence.loadPlayer(playerUUID);
+        preloadedPlayers.put(playerUUID, new PreloadedPlayer(epoch, generation, state != null && state.getEpoch() == epoch ? state : null));
+    }
 
-        try {
-            marketStateConfig.save(marketStateFile);
-        } catch (IOException e) {
-            plugin.getLogger().severe("Could not save market state to market_state.yml: " + e.getMessage());
+    /**
+     * Brings a player's data into memory, using the pre-login read when it is still current. Otherwise the data is
+     * read on the writer thread and applied when it arrives; see {@link #whenPlayerDataLoaded(UUID)}.
+     */
+    public void loadPlayerData(UUID playerUUID) {
+        PreloadedPlayer preloaded = preloadedPlayers.remove(playerUUID);
+        if (!loadedPlayers.add(playerUUID)) {
+            return;
+        }
+        if (preloaded != null && preloaded.epoch() == cycleEpoch
+                && preloaded.generation() == playerDataGenerations.getOrDefault(playerUUID, 0L)) {
+            applyPlayerState(playerUUID, preloaded.state());
+            touchPlayer(playerUUID);
+            return;
+        }
+
+        CompletableFuture<Void> loaded = new CompletableFuture<>();
+        pendingLoads.put(playerUUID, loaded);
+        persistence.loadPlayerAsync(playerUUID).whenComplete((state, error) -> {
+            if (!plugin.isEnabled()) {
+                return;
+            }
+            Bukkit.getScheduler().runTask(plugin, () -> {
+                // The player may have left, or left and joined again, while their data was being read.
+                if (pendingLoads.remove(playerUUID, loaded) && loadedPlayers.contains(playerUUID)) {
+                    applyPlayerState(playerUUID, state != null && state.getEpoch() == cycleEpoch ? state : null);
+                    touchPlayer(playerUUID);
+                }
+                loaded.complete(null);
+            });
+        });
+    }
+
+    /**
+     * @return A future completed on the main thread once the player's data is in memory. Already complete unless
+     * the player has just joined without a usable preload.
+     */
+    public CompletableFuture<Void> whenPlayerDataLoaded(UUID playerUUID) {
+        CompletableFuture<Void> loaded = pendingLoads.get(playerUUID);
+        return loaded != null ? loaded : CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * @return The player's stored data for the current cycle, or null if there is none or it is from an earlier cycle.
+     */
+    private MarketStateSnapshot.PlayerState loadStoredPlayer(UUID playerUUID) {
+        MarketStateSnapshot.PlayerState state = persistence.loadPlayer(playerUUID);
+        return state != null && state.getEpoch() == cycleEpoch ? state : null;
+    }
+
+    /**
+     * Discards the player's preload, including one still being read, because their stored data is about to change.
+     */
+    private void invalidatePreload(UUID playerUUID) {
+        playerDataGenerations.merge(playerUUID, 1L, Long::sum);
+        preloadedPlayers.remove(playerUUID);
+    }
+
+    /**
+     * Queues a write of the player's data if it changed since the last save, and releases it from memory.
+     */
+    public void unloadPlayerData(UUID playerUUID) {
+        preloadedPlayers.remove(playerUUID);
+        if (!loadedPlayers.remove(playerUUID)) {
+            return;
+        }
+        pendingLoads.remove(playerUUID);
+        if (dirtyPlayers.remove(playerUUID)) {
+            invalidatePreload(playerUUID);
+            persistence.savePlayer(playerUUID, createPlayerState(playerUUID));
+        }
+        removePlayerData(playerUUID);
+        playerStateVersions.remove(playerUUID);
+    }
+
+    private MarketStateSnapshot.StoredItem toStoredItem(ItemManager.PlayerMarketItem pmi) {
+        return new MarketStateSnapshot.StoredItem(pmi.getBaseItem().getKey(), pmi.isDiscounted(), pmi.getFinalPrice());
+    }
+
+    /**
+     * Requests an asynchronous checkpoint of the full state. Requests made close together are merged into a single write.
+     * When the journal is enabled, this also lets the journal drop every record the checkpoint covers.
+     */
+    public void saveMarketState() {
+        persistence.requestSave();
+    }
+
+    /**
+     * Saves the market state and blocks until it has been written to disk.
+     */
+    public void saveMarketStateNow() {
+        persistence.saveNow();
+    }
+
+    /**
+     * Flushes the market state synchronously and stops the background writer. Used when the plugin disables.
+     */
+    public void shutdownPersistence() {
+        if (journal != null) {
+            journal.flush();
+        }
+        persistence.shutdown();
+        if (journal != null) {
+            journal.close(journal.getSequence());
+        }
+        if (stockTable != null) {
+            try {
+                stockTable.close();
+            } catch (IOException e) {
+                plugin.getLogger().warning("Could not close market_stock.dat: " + e.getMessage());
+            }
         }
     }
 
@@ -289,6 +631,10 @@ public class MarketManager {
                     }
                     scheduleAnnouncements();
                 }
+                long prepareLead = plugin.getConfigManager().getPrepareBeforeOpenSeconds();
+                if (!marketOpen && preparedCycle == null && prepareLead > 0 && timeRemainingSeconds <= prepareLead) {
+                    prepareNextCycle();
+                }
                 if (timeRemainingSeconds > 0 && timeRemainingSeconds % 300 == 0) {
                     saveMarketState();
                 }
@@ -310,9 +656,11 @@ public class MarketManager {
             }
         }
 
-        clearAllPlayerData();
-        resetGlobalStock();
-        selectGlobalItemsForCycle();
+        if (!publishPreparedCycle()) {
+            clearAllPlayerData();
+            resetGlobalStock();
+            selectGlobalItemsForCycle();
+        }
         plugin.getLogger().info("Night Market (Scheduled) is now OPEN. Player data and global stock reset for this cycle.");
         saveMarketState();
         Bukkit.getPluginManager().callEvent(new MarketOpenEvent(false)); // Call API event
@@ -320,6 +668,7 @@ public class MarketManager {
 
     private void closeMarketScheduled() {
         marketOpen = false;
+        preparedCycle = null;
         List<String> closeMessages = plugin.getConfigManager().getMarketCloseBroadcast();
         for (String message : closeMessages) {
             Bukkit.broadcastMessage(message);
@@ -340,9 +689,11 @@ public class MarketManager {
     public void forceOpenMarket() {
         marketOpen = true;
         timeRemainingSeconds = plugin.getConfigManager().getOpenDurationSeconds();
-        clearAllPlayerData();
-        resetGlobalStock();
-        selectGlobalItemsForCycle();
+        if (!publishPreparedCycle()) {
+            clearAllPlayerData();
+            resetGlobalStock();
+            selectGlobalItemsForCycle();
+        }
 
         List<String> forceOpenMessages = plugin.getConfigManager().getForceOpenMessage();
         for (String message : forceOpenMessages) {
@@ -366,6 +717,8 @@ public class MarketManager {
 
     public void forceCloseMarket() {
         marketOpen = false;
+        // The closed phase starts over, so the next cycle is prepared again near its new end.
+        preparedCycle = null;
         timeRemainingSeconds = plugin.getConfigManager().getCloseDurationSeconds();
 
         List<String> forceCloseMessages = plugin.getConfigManager().getForceCloseMessage();
@@ -389,12 +742,78 @@ public class MarketManager {
     }
 
     public void resetPlayerData(UUID playerUUID) {
+        CompletableFuture<Void> loading = pendingLoads.get(playerUUID);
+        if (loading != null) {
+            // Reset what is being loaded rather than have the load overwrite the reset.
+            loading.thenRun(() -> resetPlayerData(playerUUID));
+            return;
+        }
+        if (!loadedPlayers.contains(playerUUID)) {
+            resetStoredPlayerData(playerUUID);
+        } else {
+            // In a seeded cycle the player only gets new items if their reroll count changes.
+            int rerolls = cycleSeed != 0 ? playerRerolls.getOrDefault(playerUUID, 0) + 1 : 0;
+            removePlayerData(playerUUID);
+            if (rerolls > 0) {
+                playerRerolls.put(playerUUID, rerolls);
+            }
+            markPlayerChanged(playerUUID);
+            logChange(rerolls > 0 ? JournalRecord.reroll(playerUUID, rerolls) : JournalRecord.resetPlayer(playerUUID));
+        }
+        plugin.getLogger().info("Reset Night Market data for player " + playerUUID + " for the current cycle.");
+        if (journal == null) {
+            saveMarketState();
+        }
+    }
+
+    /**
+     * Resets a player who is not loaded. In a seeded cycle their stored reroll count is read and bumped on the writer
+     * thread, where the record is journaled too, so it lands before anything the player does after their next join.
+     */
+    private void resetStoredPlayerData(UUID playerUUID) {
+        invalidatePreload(playerUUID);
+        if (cycleSeed == 0) {
+            persistence.savePlayer(playerUUID, EMPTY_PLAYER_STATE);
+            logChange(JournalRecord.resetPlayer(playerUUID));
+            return;
+        }
+        long epoch = cycleEpoch;
+        persistence.updatePlayer(playerUUID, stored -> {
+            int rerolls = (stored != null && stored.getEpoch() == epoch ? stored.getRerolls() : 0) + 1;
+            logChange(JournalRecord.reroll(playerUUID, rerolls));
+            return new MarketStateSnapshot.PlayerState(Collections.emptyMap(), Collections.emptySet(), Collections.emptySet(), Collections.emptyMap(), rerolls, epoch);
+        });
+    }
+
+    private void markPlayerChanged(UUID playerUUID) {
+        dirtyPlayers.add(playerUUID);
+        touchPlayer(playerUUID);
+    }
+
+    private void touchPlayer(UUID playerUUID) {
+        playerStateVersions.put(playerUUID, stateVersions.incrementAndGet());
+    }
+
+    private void touchSharedState() {
+        sharedStateVersion = stateVersions.incrementAndGet();
+    }
+
+    /**
+     * @return A number that changes whenever anything in the player's market changes: their own data, the global
+     * items, or a reset. Global stock is versioned separately by {@link #getStockVersion()}.
+     */
+    public long getStateVersion(UUID playerUUID) {
+        return Math.max(sharedStateVersion, playerStateVersions.getOrDefault(playerUUID, 0L));
+    }
+
+    private void removePlayerData(UUID playerUUID) {
+        touchPlayer(playerUUID);
         playerAssignedItems.remove(playerUUID);
         playerPurchasedItemKeys.remove(playerUUID);
         playerPurchaseCounts.remove(playerUUID);
         playerRevealedSlots.remove(playerUUID);
-        plugin.getLogger().info("Reset Night Market data for player " + playerUUID + " for the current cycle.");
-        saveMarketState();
+        playerRerolls.remove(playerUUID);
+        derivedPlayers.remove(playerUUID);
     }
 
     public void rerollMarket(Player player) {
@@ -404,11 +823,34 @@ public class MarketManager {
     }
 
     private void clearAllPlayerData() {
+        clearAllPlayerData(plugin.getConfigManager().isSeededAssignments() ? newCycleSeed() : 0L);
+    }
+
+    private void clearAllPlayerData(long newCycleSeed) {
+        clearAllPlayerData(newCycleSeed, cycleEpoch + 1);
+        if (!loadingState) {
+            logChange(JournalRecord.resetCycle(cycleEpoch, cycleSeed, marketOpen));
+        }
+    }
+
+    private void clearAllPlayerData(long newCycleSeed, long newCycleEpoch) {
         playerAssignedItems.clear();
         playerPurchasedItemKeys.clear();
         playerPurchaseCounts.clear();
         playerRevealedSlots.clear();
+        playerRerolls.clear();
+        derivedPlayers.clear();
         globalAssignedItems.clear();
+        globalItemsDirty = true;
+        playerStateVersions.clear();
+        touchSharedState();
+        cycleSeed = newCycleSeed;
+        dirtyPlayers.clear();
+        playerDataGenerations.clear();
+        preloadedPlayers.clear();
+        // Only loaded players are cleared above; everyone else's stored data is left behind by the new epoch.
+        cycleEpoch = newCycleEpoch;
+        persistence.startEpoch(cycleEpoch);
     }
 
     public void resetAllPlayersData() {
@@ -419,69 +861,299 @@ public class MarketManager {
         saveMarketState();
     }
 
+    private long newCycleSeed() {
+        long seed;
+        do {
+            seed = random.nextLong();
+        } while (seed == 0L);
+        return seed;
+    }
+
     private void resetGlobalStock() {
-        globalItemStock.clear();
+        globalItemStock = new int[0];
+        stockVersion++;
+        globalStockDirty = true;
         ItemManager itemManager = plugin.getItemManager();
         if (itemManager != null) {
             for (ItemManager.ConfiguredItem item : itemManager.getAllPossibleItems()) {
-                globalItemStock.put(item.getKey(), item.getInitialStock());
+                putStock(item.getId(), item.getInitialStock());
             }
         }
+        if (stockTable != null) {
+            stockTable.setAll(getStockByKey());
+        }
+    }
+
+    private void putStock(String itemKey, int remaining) {
+        putStock(plugin.getItemManager().getItemId(itemKey), remaining);
+    }
+
+    private void putStock(int itemId, int remaining) {
+        stockVersion++;
+        int[] stock = globalItemStock;
+        if (itemId >= stock.length) {
+            int oldLength = stock.length;
+            stock = Arrays.copyOf(stock, Math.max(itemId + 1, plugin.getItemManager().getItemIdCount()));
+            Arrays.fill(stock, oldLength, stock.length, NO_STOCK);
+            stock[itemId] = remaining;
+            globalItemStock = stock;
+        } else {
+            stock[itemId] = remaining;
+        }
+    }
+
+    /**
+     * @return A number that changes whenever any global stock value changes.
+     */
+    public long getStockVersion() {
+        return stockVersion;
+    }
+
+    private int getStock(int itemId) {
+        int[] stock = globalItemStock;
+        return itemId >= 0 && itemId < stock.length ? stock[itemId] : NO_STOCK;
+    }
+
+    /**
+     * @return The global stock keyed by item key, as it is persisted.
+     */
+    private Map<String, Integer> getStockByKey() {
+        int[] stock = globalItemStock;
+        ItemManager itemManager = plugin.getItemManager();
+        Map<String, Integer> stockByKey = new HashMap<>(stock.length * 2);
+        for (int id = 0; id < stock.length; id++) {
+            if (stock[id] != NO_STOCK) {
+                stockByKey.put(itemManager.getItemKey(id), stock[id]);
+            }
+        }
+        return stockByKey;
     }
 
     private void selectGlobalItemsForCycle() {
         globalAssignedItems.clear();
+        globalItemsDirty = true;
+        touchSharedState();
         int itemsToSelect = plugin.getConfigManager().getNumberOfGlobalItemsToShow();
         if (itemsToSelect <= 0) {
             return;
         }
 
-        ItemManager itemManager = plugin.getItemManager();
-        List<ItemManager.ConfiguredItem> globalCandidates = itemManager.getAllPossibleItems().stream()
-                .filter(ItemManager.ConfiguredItem::isGlobal)
-                .collect(Collectors.toList());
+        globalAssignedItems.putAll(drawGlobalItems(plugin.getItemManager().newGlobalItemSampler(),
+                new ArrayList<>(plugin.getConfigManager().getMarketSlotMappings().keySet()), itemsToSelect, random));
 
-        if (globalCandidates.isEmpty()) {
+        if (!globalAssignedItems.isEmpty()) {
+            plugin.getLogger().info("Selected " + globalAssignedItems.size() + " global item(s) for this market cycle.");
+        }
+        logGlobalItems();
+    }
+
+    /**
+     * Journals the global items of a cycle that has just started, so replay restores them rather than drawing new ones.
+     */
+    private void logGlobalItems() {
+        if (loadingState) {
             return;
         }
+        globalAssignedItems.forEach((slot, pmi) ->
+                logChange(JournalRecord.assignGlobal(slot, pmi.getBaseItem().getKey(), pmi.isDiscounted(), pmi.getFinalPrice())));
+    }
 
-        List<Integer> availableSlots = new ArrayList<>(plugin.getConfigManager().getMarketSlotMappings().keySet());
-        Collections.shuffle(availableSlots);
+    /**
+     * Draws up to {@code count} distinct global items into random slots. Only touches its arguments, so it is safe to
+     * call off the main thread.
+     */
+    private static Map<Integer, ItemManager.PlayerMarketItem> drawGlobalItems(WeightedSampler<ItemManager.ConfiguredItem> candidates,
+                                                                             List<Integer> availableSlots, int count, Random random) {
+        Map<Integer, ItemManager.PlayerMarketItem> selected = new HashMap<>();
+        Collections.shuffle(availableSlots, random);
+        while (selected.size() < count && !availableSlots.isEmpty()) {
+            ItemManager.ConfiguredItem item = candidates.draw(random);
+            if (item == null) {
+                break;
+            }
+            selected.put(availableSlots.remove(availableSlots.size() - 1), ItemManager.PlayerMarketItem.roll(item, random));
+        }
+        return selected;
+    }
 
-        int selectedCount = 0;
-        while (selectedCount < itemsToSelect && !globalCandidates.isEmpty() && !availableSlots.isEmpty()) {
-            ItemManager.ConfiguredItem selected = itemManager.getRandomWeightedItemFromList(globalCandidates);
-            if (selected != null) {
-                int slot = availableSlots.remove(0);
-                ItemManager.PlayerMarketItem pmi = new ItemManager.PlayerMarketItem(selected, random);
-                globalAssignedItems.put(slot, pmi);
+    /**
+     * Starts building the next cycle in the background: the global items, the initial stock and the personal items of
+     * everyone online now. Everything the build needs is captured here, on the main thread.
+     */
+    private void prepareNextCycle() {
+        ItemManager itemManager = plugin.getItemManager();
+        ConfigManager configManager = plugin.getConfigManager();
+        int catalogVersion = itemManager.getCatalogVersion();
+        List<Integer> slots = sortedMarketSlots();
+        int globalItemCount = configManager.getNumberOfGlobalItemsToShow();
+        long seed = configManager.isSeededAssignments() ? newCycleSeed() : 0L;
+        WeightedSampler<ItemManager.ConfiguredItem> globalCandidates = itemManager.newGlobalItemSampler();
+        WeightedSampler<ItemManager.ConfiguredItem> personalCandidates = itemManager.newPersonalItemSampler();
+        List<ItemManager.ConfiguredItem> items = itemManager.getAllPossibleItems();
+        int itemIdCount = itemManager.getItemIdCount();
+        List<UUID> players = Bukkit.getOnlinePlayers().stream().map(Player::getUniqueId).collect(Collectors.toList());
+
+        CompletableFuture<PreparedCycle> future = new CompletableFuture<>();
+        preparedCycle = future;
+        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+            try {
+                Random buildRandom = new Random();
+                Map<Integer, ItemManager.PlayerMarketItem> globalItems = globalItemCount > 0
+                        ? drawGlobalItems(globalCandidates, new ArrayList<>(slots), globalItemCount, buildRandom)
+                        : Collections.emptyMap();
+                globalItems.values().forEach(pmi -> personalCandidates.remove(pmi.getBaseItem()));
+
+                int[] stock = new int[itemIdCount];
+                Arrays.fill(stock, NO_STOCK);
+                for (ItemManager.ConfiguredItem item : items) {
+                    stock[item.getId()] = item.getInitialStock();
+                }
 
-                globalCandidates.remove(selected);
-                selectedCount++;
-            } else {
-                break;
+                Map<UUID, Map<Integer, ItemManager.PlayerMarketItem>> playerItems = new HashMap<>(players.size() * 2);
+                for (UUID playerUUID : players) {
+                    Map<Integer, ItemManager.PlayerMarketItem> assigned = new HashMap<>();
+                    if (seed != 0) {
+                        deriveAssignedItems(seed, playerUUID, 0, personalCandidates.copy(), globalItems, assigned, slots);
+                    } else {
+                        WeightedSampler<ItemManager.ConfiguredItem> pool = personalCandidates.copy();
+                        for (int slot : slots) {
+                            if (globalItems.containsKey(slot)) continue;
+                            ItemManager.ConfiguredItem drawn = pool.draw(buildRandom);
+                            if (drawn == null) break;
+                            assigned.put(slot, ItemManager.PlayerMarketItem.roll(drawn, buildRandom));
+                        }
+                    }
+                    playerItems.put(playerUUID, assigned);
+                }
+                future.complete(new PreparedCycle(catalogVersion, slots, globalItemCount, seed, globalItems, stock, playerItems));
+            } catch (RuntimeException e) {
+                future.completeExceptionally(e);
             }
+        });
+    }
+
+    /**
+     * Swaps in the cycle built by {@link #prepareNextCycle()}, in place of clearing the player data, resetting the
+     * stock and selecting the global items. Assignments are not journaled: the save that follows every open stores
+     * them, and a crash before it restarts from the closed state, which opens a fresh cycle anyway.
+     *
+     * @return false if no prepared cycle is ready, or it was built from items or settings that have since changed.
+     */
+    private boolean publishPreparedCycle() {
+        CompletableFuture<PreparedCycle> future = preparedCycle;
+        preparedCycle = null;
+        if (future == null || !future.isDone()) {
+            return false;
+        }
+        PreparedCycle cycle;
+        try {
+            cycle = future.join();
+        } catch (CompletionException e) {
+            plugin.getLogger().log(Level.WARNING, "Could not prepare the next market cycle. Building it now instead.", e.getCause());
+            return false;
+        }
+        ConfigManager configManager = plugin.getConfigManager();
+        if (cycle.catalogVersion() != plugin.getItemManager().getCatalogVersion()
+                || cycle.globalItemCount() != configManager.getNumberOfGlobalItemsToShow()
+                || (cycle.cycleSeed() != 0) != configManager.isSeededAssignments()
+                || !cycle.slots().equals(sortedMarketSlots())) {
+            return false;
         }
 
-        if (selectedCount > 0) {
-            plugin.getLogger().info("Selected " + selectedCount + " global item(s) for this market cycle.");
+        clearAllPlayerData(cycle.cycleSeed());
+        globalAssignedItems.putAll(cycle.globalItems());
+        logGlobalItems();
+        globalItemStock = cycle.stock();
+        stockVersion++;
+        globalStockDirty = true;
+        if (stockTable != null) {
+            stockTable.setAll(getStockByKey());
+        }
+        int players = 0;
+        for (Map.Entry<UUID, Map<Integer, ItemManager.PlayerMarketItem>> entry : cycle.playerItems().entrySet()) {
+            UUID playerUUID = entry.getKey();
+            // Players who left since are loaded again from the new epoch when they rejoin.
+            if (!loadedPlayers.contains(playerUUID)) continue;
+            playerAssignedItems.put(playerUUID, new ConcurrentHashMap<>(entry.getValue()));
+            if (cycle.cycleSeed() != 0) {
+                derivedPlayers.add(playerUUID);
+            } else {
+                markPlayerChanged(playerUUID);
+                entry.getValue().forEach((slot, pmi) -> logChange(JournalRecord.assign(playerUUID, slot,
+                        pmi.getBaseItem().getKey(), pmi.isDiscounted(), pmi.getFinalPrice())));
+            }
+            players++;
         }
+        plugin.getLogger().info("Opened the prepared market cycle with " + globalAssignedItems.size() + " global item(s) and items for " + players + " online player(s).");
+        return true;
+    }
+
+    private List<Integer> sortedMarketSlots() {
+        List<Integer> slots = new ArrayList<>(plugin.getConfigManager().getMarketSlotMappings().keySet());
+        Collections.sort(slots);
+        return slots;
     }
 
 
     public int getRemainingStock(String itemKey) {
-        return globalItemStock.getOrDefault(itemKey, 0);
+        return getRemainingStock(plugin.getItemManager().findItemId(itemKey));
+    }
+
+    public int getRemainingStock(ItemManager.ConfiguredItem item) {
+        return getRemainingStock(itemIdOf(item));
+    }
+
+    /**
+     * @return The item's ID, looked up by key for items built without one through the public constructor.
+     */
+    private int itemIdOf(ItemManager.ConfiguredItem item) {
+        return item.getId() >= 0 ? item.getId() : plugin.getItemManager().findItemId(item.getKey());
+    }
+
+    private int getRemainingStock(int itemId) {
+        int stock = getStock(itemId);
+        return stock != NO_STOCK ? stock : 0;
     }
 
     public void decrementStock(String itemKey) {
-        Integer currentStock = globalItemStock.get(itemKey);
-        if (currentStock != null && currentStock > 0) { // -1 stock is infinite, so no decrement
-            globalItemStock.put(itemKey, currentStock - 1);
+        decrementStock(plugin.getItemManager().findItemId(itemKey), itemKey);
+    }
+
+    public void decrementStock(ItemManager.ConfiguredItem item) {
+        decrementStock(itemIdOf(item), item.getKey());
+    }
+
+    private void decrementStock(int itemId, String itemKey) {
+        int currentStock = getStock(itemId);
+        if (currentStock != NO_STOCK && currentStock > 0) { // -1 stock is infinite, so no decrement
+            putStock(itemId, currentStock - 1);
+            if (stockTable != null) {
+                stockTable.set(itemKey, currentStock - 1);
+            }
+            globalStockDirty = true;
+            logChange(JournalRecord.stock(itemKey, currentStock - 1));
+            stockChangeListener.accept(itemId);
         }
     }
 
+    /**
+     * Sets a callback that runs on the main thread whenever a purchase lowers an item's global stock.
+     */
+    public void setStockChangeListener(IntConsumer stockChangeListener) {
+        this.stockChangeListener = stockChangeListener;
+    }
+
     public void markSlotAsRevealed(UUID playerUUID, int guiSlot) {
-        playerRevealedSlots.computeIfAbsent(playerUUID, k -> new HashSet<>()).add(guiSlot);
+        if (playerRevealedSlots.computeIfAbsent(playerUUID, k -> new HashSet<>()).add(guiSlot)) {
+            markPlayerChanged(playerUUID);
+            logChange(JournalRecord.reveal(playerUUID, guiSlot));
+            Map<Integer, ItemManager.PlayerMarketItem> playerItems = playerAssignedItems.get(playerUUID);
+            ItemManager.PlayerMarketItem pmi = playerItems != null ? playerItems.get(guiSlot) : null;
+            if (cycleSeed != 0 && pmi != null) {
+                // Pin the derived item, which could otherwise be derived differently after an items.yml reload.
+                logChange(JournalRecord.assign(playerUUID, guiSlot, pmi.getBaseItem().getKey(), pmi.isDiscounted(), pmi.getFinalPrice()));
+            }
+        }
     }
 
     public boolean isSlotRevealed(UUID playerUUID, int guiSlot) {
@@ -520,40 +1192,160 @@ public class MarketManager {
             return playerItems.get(guiInventorySlot);
         }
 
+        if (cycleSeed != 0) {
+            if (derivedPlayers.add(playerUUID)) {
+                deriveAssignedItems(playerUUID, playerItems);
+            }
+            return playerItems.get(guiInventorySlot);
+        }
+
         Set<String> alreadyAssignedKeys = playerItems.values().stream()
                 .map(pmi -> pmi.getBaseItem().getKey())
                 .collect(Collectors.toSet());
 
         globalAssignedItems.values().forEach(pmi -> alreadyAssignedKeys.add(pmi.getBaseItem().getKey()));
 
-        List<ItemManager.ConfiguredItem> personalItemPool = plugin.getItemManager().getAllPossibleItems().stream()
-                .filter(item -> !item.isGlobal())
-                .collect(Collectors.toList());
-
-        ItemManager.ConfiguredItem newItem = null;
-        int attempts = 0;
-        int maxAttempts = 50;
-
-        while (attempts < maxAttempts) {
-            ItemManager.ConfiguredItem potentialItem = plugin.getItemManager().getRandomWeightedItemFromList(personalItemPool);
-            if (potentialItem != null && !alreadyAssignedKeys.contains(potentialItem.getKey())) {
-                newItem = potentialItem;
-                break;
-            }
-            attempts++;
+        ItemManager.ConfiguredItem newItem = plugin.getItemManager().getRandomPersonalItem(random);
+        if (newItem != null && alreadyAssignedKeys.contains(newItem.getKey())) {
+            // Taken already: draw from the items that are left instead. Conditioned on a miss, this gives every
+            // remaining item the same odds a retry would, without retrying.
+            newItem = newPersonalItemPool(playerItems).draw(random);
         }
 
         if (newItem != null) {
-            ItemManager.PlayerMarketItem playerMarketItem = new ItemManager.PlayerMarketItem(newItem, random);
+            ItemManager.PlayerMarketItem playerMarketItem = ItemManager.PlayerMarketItem.roll(newItem, random);
             playerItems.put(guiInventorySlot, playerMarketItem);
+            markPlayerChanged(playerUUID);
+            logChange(JournalRecord.assign(playerUUID, guiInventorySlot, newItem.getKey(), playerMarketItem.isDiscounted(), playerMarketItem.getFinalPrice()));
             return playerMarketItem;
         } else {
-            plugin.getLogger().warning("Failed to assign a unique PERSONAL item for player " + player.getName() + " at slot " + guiInventorySlot + " after " + maxAttempts + " attempts.");
+            plugin.getLogger().warning("Failed to assign a unique PERSONAL item for player " + player.getName() + " at slot " + guiInventorySlot + ": every personal item is already assigned.");
             return null;
         }
     }
 
 
+    /**
+     * Looks up, and assigns where needed, the items of every market slot below {@code inventorySize} in one pass.
+     * All of the player's unassigned personal slots are filled from a single pool snapshot with distinct draws.
+     *
+     * @return The items indexed by GUI slot. Slots without a market item, or with nothing left to assign, are null.
+     */
+    public ItemManager.PlayerMarketItem[] getOrAssignPlayerItems(Player player, int inventorySize) {
+        UUID playerUUID = player.getUniqueId();
+        ConcurrentHashMap<Integer, ItemManager.PlayerMarketItem> playerItems = playerAssignedItems.computeIfAbsent(playerUUID, k -> new ConcurrentHashMap<>());
+        if (cycleSeed != 0 && derivedPlayers.add(playerUUID)) {
+            deriveAssignedItems(playerUUID, playerItems);
+        }
+
+        ItemManager.PlayerMarketItem[] items = new ItemManager.PlayerMarketItem[inventorySize];
+        WeightedSampler<ItemManager.ConfiguredItem> personalItemPool = null;
+        int unassignedSlots = 0;
+        for (int slot : plugin.getConfigManager().getMarketSlotMappings().keySet()) {
+            if (slot < 0 || slot >= inventorySize) continue;
+
+            ItemManager.PlayerMarketItem item = globalAssignedItems.get(slot);
+            if (item == null) {
+                item = playerItems.get(slot);
+            }
+            // Derived cycles fill every slot they can above; stored assignments are drawn here.
+            if (item == null && cycleSeed == 0) {
+                if (personalItemPool == null) {
+                    personalItemPool = newPersonalItemPool(playerItems);
+                }
+                ItemManager.ConfiguredItem drawn = personalItemPool.draw(random);
+                if (drawn != null) {
+                    item = ItemManager.PlayerMarketItem.roll(drawn, random);
+                    playerItems.put(slot, item);
+                    markPlayerChanged(playerUUID);
+                    logChange(JournalRecord.assign(playerUUID, slot, drawn.getKey(), item.isDiscounted(), item.getFinalPrice()));
+                } else {
+                    unassignedSlots++;
+                }
+            }
+            items[slot] = item;
+        }
+
+        if (unassignedSlots > 0) {
+            plugin.getLogger().warning("Failed to assign a unique PERSONAL item for player " + player.getName() + " in " + unassignedSlots
+                    + " slot(s): every personal item is already assigned.");
+        }
+        return items;
+    }
+
+    /**
+     * @return A sampler over the personal items the player can still be assigned. Costs a copy of the whole pool, so
+     * build it at most once per call and draw every slot the call fills from it.
+     */
+    private WeightedSampler<ItemManager.ConfiguredItem> newPersonalItemPool(Map<Integer, ItemManager.PlayerMarketItem> playerItems) {
+        WeightedSampler<ItemManager.ConfiguredItem> pool = plugin.getItemManager().newPersonalItemSampler();
+        playerItems.values().forEach(pmi -> pool.remove(pmi.getBaseItem()));
+        globalAssignedItems.values().forEach(pmi -> pool.remove(pmi.getBaseItem()));
+        return pool;
+    }
+
+    /**
+     * Fills every personal slot of the player from the cycle seed. Each slot's item and discount roll come from a
+     * random source seeded with (cycle seed, player, slot, reroll count), and slots are filled in ascending order
+     * without repeating an item, so the result is the same every time it is derived and never has to be stored.
+     * <p>
+     * Slots already in {@code playerItems} are pinned, e.g. revealed slots loaded from the store. A pinned item leaves
+     * the pool only once its own slot is reached, so the slots below it are drawn from the same pool as when it was
+     * derived; an earlier slot only draws again if it lands on an item pinned further along, which can only happen
+     * after the items have been reloaded.
+     */
+    private void deriveAssignedItems(UUID playerUUID, Map<Integer, ItemManager.PlayerMarketItem> playerItems) {
+        deriveAssignedItems(cycleSeed, playerUUID, playerRerolls.getOrDefault(playerUUID, 0),
+                plugin.getItemManager().newPersonalItemSampler(), globalAssignedItems, playerItems, sortedMarketSlots());
+        touchPlayer(playerUUID);
+    }
+
+    private static void deriveAssignedItems(long cycleSeed, UUID playerUUID, int rerolls,
+                                            WeightedSampler<ItemManager.ConfiguredItem> personalItemPool,
+                                            Map<Integer, ItemManager.PlayerMarketItem> globalItems,
+                                            Map<Integer, ItemManager.PlayerMarketItem> playerItems, List<Integer> slots) {
+        globalItems.values().forEach(pmi -> personalItemPool.remove(pmi.getBaseItem()));
+        Set<ItemManager.ConfiguredItem> pinnedAhead = new HashSet<>();
+        playerItems.values().forEach(pmi -> pinnedAhead.add(pmi.getBaseItem()));
+
+        for (int slot : slots) {
+            if (globalItems.containsKey(slot)) {
+                continue;
+            }
+            ItemManager.PlayerMarketItem pinned = playerItems.get(slot);
+            if (pinned != null) {
+                personalItemPool.remove(pinned.getBaseItem());
+                pinnedAhead.remove(pinned.getBaseItem());
+                continue;
+            }
+            Random slotRandom = new Random(slotSeed(cycleSeed, playerUUID, slot, rerolls));
+            ItemManager.ConfiguredItem item = personalItemPool.draw(slotRandom);
+            while (item != null && pinnedAhead.contains(item)) {
+                item = personalItemPool.draw(slotRandom);
+            }
+            if (item == null) {
+                // Later pinned slots still have to be walked, but nothing is left to draw for the rest.
+                continue;
+            }
+            playerItems.put(slot, ItemManager.PlayerMarketItem.roll(item, slotRandom));
+        }
+    }
+
+    private static long slotSeed(long cycleSeed, UUID playerUUID, int slot, int rerolls) {
+        long seed = mix64(cycleSeed ^ playerUUID.getMostSignificantBits());
+        seed = mix64(seed ^ playerUUID.getLeastSignificantBits());
+        return mix64(seed ^ (((long) slot << 32) | (rerolls & 0xFFFFFFFFL)));
+    }
+
+    /**
+     * The SplitMix64 finalizer: spreads every input bit over the whole output, so nearby inputs give unrelated seeds.
+     */
+    private static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
     public ItemManager.PlayerMarketItem getPlayerAssignedItem(Player player, int guiInventorySlot) {
         if (globalAssignedItems.containsKey(guiInventorySlot)) {
             return globalAssignedItems.get(guiInventorySlot);
@@ -566,12 +1358,23 @@ public class MarketManager {
         return null;
     }
 
+    /**
+     * Records a purchase and makes it durable: appended to the journal when it is enabled,
+     * otherwise by requesting a full save.
+     */
     public void recordPlayerPurchase(UUID playerUUID, String configuredItemKey) {
-        if (plugin.getConfigManager().getStockMode() == ConfigManager.StockMode.GLOBAL) {
+        boolean globalMode = plugin.getConfigManager().getStockMode() == ConfigManager.StockMode.GLOBAL;
+        markPlayerChanged(playerUUID);
+        if (globalMode) {
             playerPurchasedItemKeys.computeIfAbsent(playerUUID, k -> new HashSet<>()).add(configuredItemKey);
+            logChange(JournalRecord.purchase(playerUUID, configuredItemKey, true));
         } else {
-            playerPurchaseCounts.computeIfAbsent(playerUUID, k -> new ConcurrentHashMap<>())
-                    .compute(configuredItemKey, (key, count) -> (count == null) ? 1 : count + 1);
+            int count = playerPurchaseCounts.computeIfAbsent(playerUUID, k -> new ConcurrentHashMap<>())
+                    .compute(configuredItemKey, (key, current) -> (current == null) ? 1 : current + 1);
+            logChange(JournalRecord.purchaseCount(playerUUID, configuredItemKey, count));
+        }
+        if (journal == null) {
+            saveMarketState();
         }
     }
 
@@ -0,0 +1,332 @@
+package me.allync.nightmarket.storage;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Compact binary encoding of a {@link MarketStateSnapshot}.
+ * <p>
+ * Layout: a magic number and format version, the scalar market fields, a dictionary of every item key used in the
+ * snapshot, then the global items, global stock and per-player sections. Slots, counts and dictionary indexes are
+ * unsigned varints, UUIDs are two raw longs, the cycle seed is a raw long and prices are raw doubles, so a round trip
+ * is lossless. The cycle epoch and each player's epoch are unsigned varlongs.
+ * The stream ends with a CRC32 of everything before it.
+ * <p>
+ * Per-player shard files use the same encoding for a single player, with their own header and dictionary.
+ */
+public final class BinaryMarketStateCodec {
+
+    private static final int MAGIC = 0x4E4D5354; // "NMST"
+    private static final int PLAYER_MAGIC = 0x4E4D5053; // "NMPS"
+    // Version 2 added the cycle seed and per-player reroll counts, version 3 the cycle epochs. Older files are still read.
+    private static final int VERSION = 3;
+
+    private BinaryMarketStateCodec() {}
+
+    public static void write(MarketStateSnapshot snapshot, OutputStream output) throws IOException {
+        write(snapshot, output, VERSION);
+    }
+
+    /**
+     * Writes the state in an older format version, leaving out what that version did not have. Only the current
+     * version is written in use; the older ones are kept so their readers can be tested.
+     */
+    static void write(MarketStateSnapshot snapshot, OutputStream output, int version) throws IOException {
+        CheckedOutputStream checked = new CheckedOutputStream(output, new CRC32());
+        DataOutputStream out = new DataOutputStream(checked);
+
+        out.writeInt(MAGIC);
+        out.writeByte(version);
+        out.writeBoolean(snapshot.isMarketOpen());
+        writeVarLong(out, snapshot.getTimeRemainingSeconds());
+        writeVarLong(out, snapshot.getSavedTimestamp());
+        writeVarLong(out, snapshot.getJournalSequence());
+        if (version >= 2) {
+            out.writeLong(snapshot.getCycleSeed());
+        }
+        if (version >= 3) {
+            writeVarLong(out, snapshot.getCycleEpoch());
+        }
+
+        Map<String, Integer> dictionary = buildDictionary(snapshot);
+        writeDictionary(out, dictionary);
+
+        writeItems(out, snapshot.getGlobalAssignedItems(), dictionary);
+
+        writeVarInt(out, snapshot.getGlobalItemStock().size());
+        for (Map.Entry<String, Integer> entry : snapshot.getGlobalItemStock().entrySet()) {
+            writeVarInt(out, dictionary.get(entry.getKey()));
+            writeVarLong(out, zigZag(entry.getValue()));
+        }
+
+        writeVarInt(out, snapshot.getPlayers().size());
+        for (Map.Entry<UUID, MarketStateSnapshot.PlayerState> entry : snapshot.getPlayers().entrySet()) {
+            out.writeLong(entry.getKey().getMostSignificantBits());
+            out.writeLong(entry.getKey().getLeastSignificantBits());
+            writePlayer(out, entry.getValue(), dictionary, version);
+        }
+
+        writeChecksum(out, checked, output);
+    }
+
+    /**
+     * Writes a single player's shard: a header, a dictionary of the item keys the player uses and the player's state.
+     */
+    public static void writePlayer(MarketStateSnapshot.PlayerState state, OutputStream output) throws IOException {
+        writePlayer(state, output, VERSION);
+    }
+
+    /**
+     * Writes a player's shard in an older format version, like {@link #write(MarketStateSnapshot, OutputStream, int)}.
+     */
+    static void writePlayer(MarketStateSnapshot.PlayerState state, OutputStream output, int version) throws IOException {
+        CheckedOutputStream checked = new CheckedOutputStream(output, new CRC32());
+        DataOutputStream out = new DataOutputStream(checked);
+
+        out.writeInt(PLAYER_MAGIC);
+        out.writeByte(version);
+
+        Map<String, Integer> dictionary = new LinkedHashMap<>();
+        addPlayerKeys(dictionary, state);
+        writeDictionary(out, dictionary);
+        writePlayer(out, state, dictionary, version);
+
+        writeChecksum(out, checked, output);
+    }
+
+    public static MarketStateSnapshot read(InputStream input) throws IOException {
+        CheckedInputStream checked = new CheckedInputStream(input, new CRC32());
+        DataInputStream in = new DataInputStream(checked);
+
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a NightMarket binary state file.");
+        }
+        int version = in.readUnsignedByte();
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Unsupported binary state version " + version + ".");
+        }
+        boolean marketOpen = in.readBoolean();
+        long timeRemaining = readVarLong(in);
+        long savedTimestamp = readVarLong(in);
+        long journalSequence = readVarLong(in);
+        long cycleSeed = version >= 2 ? in.readLong() : 0L;
+        long cycleEpoch = version >= 3 ? readVarLong(in) : 0L;
+
+        String[] dictionary = readDictionary(in);
+
+        Map<Integer, MarketStateSnapshot.StoredItem> globalItems = readItems(in, dictionary);
+
+        int stockCount = readVarInt(in);
+        Map<String, Integer> stock = new HashMap<>(stockCount * 2);
+        for (int i = 0; i < stockCount; i++) {
+            String key = lookup(dictionary, readVarInt(in));
+            stock.put(key, (int) unZigZag(readVarLong(in)));
+        }
+
+        int playerCount = readVarInt(in);
+        Map<UUID, MarketStateSnapshot.PlayerState> players = new HashMap<>(playerCount * 2);
+        for (int i = 0; i < playerCount; i++) {
+            UUID playerUUID = new UUID(in.readLong(), in.readLong());
+            players.put(playerUUID, readPlayer(in, dictionary, version));
+        }
+
+        verifyChecksum(checked, input);
+        return new MarketStateSnapshot(marketOpen, timeRemaining, savedTimestamp, journalSequence, cycleSeed, cycleEpoch, globalItems, stock, players);
+    }
+
+    public static MarketStateSnapshot.PlayerState readPlayer(InputStream input) throws IOException {
+        CheckedInputStream checked = new CheckedInputStream(input, new CRC32());
+        DataInputStream in = new DataInputStream(checked);
+
+        if (in.readInt() != PLAYER_MAGIC) {
+            throw new IOException("Not a NightMarket binary player file.");
+        }
+        int version = in.readUnsignedByte();
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Unsupported binary player file version " + version + ".");
+        }
+        String[] dictionary = readDictionary(in);
+        MarketStateSnapshot.PlayerState state = readPlayer(in, dictionary, version);
+
+        verifyChecksum(checked, input);
+        return state;
+    }
+
+    private static Map<String, Integer> buildDictionary(MarketStateSnapshot snapshot) {
+        Map<String, Integer> dictionary = new LinkedHashMap<>();
+        snapshot.getGlobalAssignedItems().values().forEach(item -> dictionary.putIfAbsent(item.key(), dictionary.size()));
+        snapshot.getGlobalItemStock().keySet().forEach(key -> dictionary.putIfAbsent(key, dictionary.size()));
+        for (MarketStateSnapshot.PlayerState state : snapshot.getPlayers().values()) {
+            addPlayerKeys(dictionary, state);
+        }
+        return dictionary;
+    }
+
+    private static void addPlayerKeys(Map<String, Integer> dictionary, MarketStateSnapshot.PlayerState state) {
+        state.getAssignedItems().values().forEach(item -> dictionary.putIfAbsent(item.key(), dictionary.size()));
+        state.getPurchasedKeys().forEach(key -> dictionary.putIfAbsent(key, dictionary.size()));
+        state.getPurchaseCounts().keySet().forEach(key -> dictionary.putIfAbsent(key, dictionary.size()));
+    }
+
+    private static void writeDictionary(DataOutputStream out, Map<String, Integer> dictionary) throws IOException {
+        writeVarInt(out, dictionary.size());
+        for (String key : dictionary.keySet()) {
+            out.writeUTF(key);
+        }
+    }
+
+    private static String[] readDictionary(DataInputStream in) throws IOException {
+        int dictionarySize = readVarInt(in);
+        String[] dictionary = new String[dictionarySize];
+        for (int i = 0; i < dictionarySize; i++) {
+            dictionary[i] = in.readUTF();
+        }
+        return dictionary;
+    }
+
+    private static void writePlayer(DataOutputStream out, MarketStateSnapshot.PlayerState state, Map<String, Integer> dictionary,
+                                    int version) throws IOException {
+        writeItems(out, state.getAssignedItems(), dictionary);
+
+        writeVarInt(out, state.getRevealedSlots().size());
+        for (int slot : state.getRevealedSlots()) {
+            writeVarInt(out, slot);
+        }
+
+        writeVarInt(out, state.getPurchasedKeys().size());
+        for (String key : state.getPurchasedKeys()) {
+            writeVarInt(out, dictionary.get(key));
+        }
+
+        writeVarInt(out, state.getPurchaseCounts().size());
+        for (Map.Entry<String, Integer> count : state.getPurchaseCounts().entrySet()) {
+            writeVarInt(out, dictionary.get(count.getKey()));
+            writeVarInt(out, count.getValue());
+        }
+
+        if (version >= 2) {
+            writeVarInt(out, state.getRerolls());
+        }
+        if (version >= 3) {
+            writeVarLong(out, state.getEpoch());
+        }
+    }
+
+    private static MarketStateSnapshot.PlayerState readPlayer(DataInputStream in, String[] dictionary, int version) throws IOException {
+        Map<Integer, MarketStateSnapshot.StoredItem> assigned = readItems(in, dictionary);
+
+        int revealedCount = readVarInt(in);
+        Set<Integer> revealed = new HashSet<>();
+        for (int i = 0; i < revealedCount; i++) {
+            revealed.add(readVarInt(in));
+        }
+
+        int purchasedCount = readVarInt(in);
+        Set<String> purchased = new HashSet<>();
+        for (int i = 0; i < purchasedCount; i++) {
+            purchased.add(lookup(dictionary, readVarInt(in)));
+        }
+
+        int countsCount = readVarInt(in);
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < countsCount; i++) {
+            counts.put(lookup(dictionary, readVarInt(in)), readVarInt(in));
+        }
+
+        int rerolls = version >= 2 ? readVarInt(in) : 0;
+        long epoch = version >= 3 ? readVarLong(in) : 0L;
+        return new MarketStateSnapshot.PlayerState(assigned, revealed, purchased, counts, rerolls, epoch);
+    }
+
+    private static void writeChecksum(DataOutputStream out, CheckedOutputStream checked, OutputStream output) throws IOException {
+        out.flush();
+        // The checksum itself is written past the checked stream.
+        new DataOutputStream(output).writeInt((int) checked.getChecksum().getValue());
+        output.flush();
+    }
+
+    private static void verifyChecksum(CheckedInputStream checked, InputStream input) throws IOException {
+        int expectedChecksum = (int) checked.getChecksum().getValue();
+        int storedChecksum = new DataInputStream(input).readInt();
+        if (expectedChecksum != storedChecksum) {
+            throw new IOException("Binary state checksum mismatch; the file is corrupt or incomplete.");
+        }
+    }
+
+    private static void writeItems(DataOutputStream out, Map<Integer, MarketStateSnapshot.StoredItem> items, Map<String, Integer> dictionary) throws IOException {
+        writeVarInt(out, items.size());
+        for (Map.Entry<Integer, MarketStateSnapshot.StoredItem> entry : items.entrySet()) {
+            MarketStateSnapshot.StoredItem item = entry.getValue();
+            writeVarInt(out, entry.getKey());
+            writeVarInt(out, dictionary.get(item.key()));
+            out.writeBoolean(item.discounted());
+            out.writeDouble(item.price());
+        }
+    }
+
+    private static Map<Integer, MarketStateSnapshot.StoredItem> readItems(DataInputStream in, String[] dictionary) throws IOException {
+        int count = readVarInt(in);
+        Map<Integer, MarketStateSnapshot.StoredItem> items = new HashMap<>(count * 2);
+        for (int i = 0; i < count; i++) {
+            int slot = readVarInt(in);
+            String key = lookup(dictionary, readVarInt(in));
+            items.put(slot, new MarketStateSnapshot.StoredItem(key, in.readBoolean(), in.readDouble()));
+        }
+        return items;
+    }
+
+    private static String lookup(String[] dictionary, int index) throws IOException {
+        if (index < 0 || index >= dictionary.length) {
+            throw new IOException("Item key index " + index + " is outside the dictionary.");
+        }
+        return dictionary[index];
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        writeVarLong(out, value & 0xFFFFFFFFL);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        return (int) readVarLong(in);
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("Malformed varint.");
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
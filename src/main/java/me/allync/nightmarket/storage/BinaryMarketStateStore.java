@@ -0,0 +1,56 @@
+package me.allync.nightmarket.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the market state in market_state.dat and each player's data in playerdata/&lt;uuid&gt;.dat,
+ * encoded with {@link BinaryMarketStateCodec}.
+ */
+public class BinaryMarketStateStore extends FileMarketStateStore {
+
+    public BinaryMarketStateStore(File file, File playerDirectory, Logger logger) {
+        super(file, playerDirectory, ".dat", logger);
+    }
+
+    @Override
+    protected MarketStateSnapshot read(File source) throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(source))) {
+            return BinaryMarketStateCodec.read(in);
+        }
+    }
+
+    @Override
+    protected void write(MarketStateSnapshot snapshot, File target) throws IOException {
+        try (FileOutputStream fileOut = new FileOutputStream(target);
+             OutputStream out = new BufferedOutputStream(fileOut)) {
+            BinaryMarketStateCodec.write(snapshot, out);
+            out.flush();
+            fileOut.getFD().sync();
+        }
+    }
+
+    @Override
+    protected MarketStateSnapshot.PlayerState readPlayer(File source) throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(source))) {
+            return BinaryMarketStateCodec.readPlayer(in);
+        }
+    }
+
+    @Override
+    protected void writePlayer(MarketStateSnapshot.PlayerState state, File target) throws IOException {
+        try (FileOutputStream fileOut = new FileOutputStream(target);
+             OutputStream out = new BufferedOutputStream(fileOut)) {
+            BinaryMarketStateCodec.writePlayer(state, out);
+            out.flush();
+            fileOut.getFD().sync();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package me.allync.nightmarket.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+/**
+ * Stores the market-wide state in a single file and each player's data in its own shard file,
+ * {@code <playerDirectory>/<uuid><extension>}. Every write goes to a temporary file that is then moved over the old
+ * one, so a crash mid-write never leaves a truncated file behind.
+ */
+public abstract class FileMarketStateStore implements MarketStateStore {
+
+    protected final File file;
+    protected final File playerDirectory;
+    protected final String extension;
+    protected final Logger logger;
+
+    protected FileMarketStateStore(File file, File playerDirectory, String extension, Logger logger) {
+        this.file = file;
+        this.playerDirectory = playerDirectory;
+        this.extension = extension;
+        this.logger = logger;
+    }
+
+    @Override
+    public String getName() {
+        return file.getName();
+    }
+
+    @Override
+    public long getLastModified() {
+        return file.exists() ? file.lastModified() : 0L;
+    }
+
+    @Override
+    public MarketStateSnapshot load() throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            return read(file);
+        } catch (IOException e) {
+            throw moveAside(file, e);
+        }
+    }
+
+    @Override
+    public void save(MarketStateSnapshot snapshot) throws IOException {
+        // Player files first: once the main file is replaced it no longer carries any legacy player sections.
+        // Players missing from the snapshot have not changed, so their files are left alone.
+        for (Map.Entry<UUID, MarketStateSnapshot.PlayerState> entry : snapshot.getPlayers().entrySet()) {
+            savePlayer(entry.getKey(), entry.getValue());
+        }
+        MarketStateSnapshot marketWide = new MarketStateSnapshot(snapshot.isMarketOpen(), snapshot.getTimeRemainingSeconds(),
+                snapshot.getSavedTimestamp(), snapshot.getJournalSequence(), snapshot.getCycleSeed(), snapshot.getCycleEpoch(), snapshot.getGlobalAssignedItems(),
+                snapshot.getGlobalItemStock(), Collections.emptyMap(), snapshot.isGlobalItemsChanged(), snapshot.isGlobalStockChanged());
+        File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        write(marketWide, tempFile);
+        replaceFile(tempFile, file);
+    }
+
+    @Override
+    public MarketStateSnapshot.PlayerState loadPlayer(UUID playerUUID) throws IOException {
+        File playerFile = getPlayerFile(playerUUID);
+        if (!playerFile.exists()) {
+            return null;
+        }
+        try {
+            return readPlayer(playerFile);
+        } catch (IOException e) {
+            throw moveAside(playerFile, e);
+        }
+    }
+
+    @Override
+    public void savePlayer(UUID playerUUID, MarketStateSnapshot.PlayerState state) throws IOException {
+        File playerFile = getPlayerFile(playerUUID);
+        if (state.isEmpty()) {
+            Files.deleteIfExists(playerFile.toPath());
+            return;
+        }
+        if (!playerDirectory.exists() && !playerDirectory.mkdirs()) {
+            throw new IOException("Could not create " + playerDirectory.getName() + ".");
+        }
+        File tempFile = new File(playerDirectory, playerFile.getName() + ".tmp");
+        writePlayer(state, tempFile);
+        replaceFile(tempFile, playerFile);
+    }
+
+    @Override
+    public void clearPlayers() throws IOException {
+        File[] playerFiles = playerDirectory.listFiles((dir, name) -> name.endsWith(extension));
+        if (playerFiles == null) {
+            return;
+        }
+        for (File playerFile : playerFiles) {
+            Files.deleteIfExists(playerFile.toPath());
+        }
+    }
+
+    @Override
+    public Collection<UUID> getStoredPlayers() {
+        File[] playerFiles = playerDirectory.listFiles((dir, name) -> name.endsWith(extension));
+        if (playerFiles == null) {
+            return Collections.emptyList();
+        }
+        List<UUID> players = new ArrayList<>(playerFiles.length);
+        for (File playerFile : playerFiles) {
+            String name = playerFile.getName();
+            try {
+                players.add(UUID.fromString(name.substring(0, name.length() - extension.length())));
+            } catch (IllegalArgumentException e) {
+                logger.warning("Ignoring unexpected file " + name + " in " + playerDirectory.getName() + ".");
+            }
+        }
+        return players;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    protected abstract MarketStateSnapshot read(File source) throws IOException;
+
+    protected abstract void write(MarketStateSnapshot snapshot, File target) throws IOException;
+
+    protected abstract MarketStateSnapshot.PlayerState readPlayer(File source) throws IOException;
+
+    protected abstract void writePlayer(MarketStateSnapshot.PlayerState state, File target) throws IOException;
+
+    private File getPlayerFile(UUID playerUUID) {
+        return new File(playerDirectory, playerUUID + extension);
+    }
+
+    /**
+     * Keeps an unreadable file for inspection instead of letting the next save overwrite it.
+     */
+    private static IOException moveAside(File source, IOException cause) {
+        File corruptFile = new File(source.getParentFile(), source.getName() + ".corrupt");
+        if (source.renameTo(corruptFile)) {
+            return new IOException(cause.getMessage() + " The file has been moved to " + corruptFile.getName() + ".", cause);
+        }
+        return cause;
+    }
+
+    static void replaceFile(File source, File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package me.allync.nightmarket.storage;
+
+import java.util.UUID;
+
+/**
+ * A single market state mutation recorded in the {@link MarketJournal}.
+ * Only the fields relevant to the record's {@link Type} are set.
+ */
+public record JournalRecord(Type type, UUID playerUUID, int slot, String itemKey, boolean flag, double price, int value,
+                            long cycleEpoch, long cycleSeed) {
+
+    public enum Type {
+        REVEAL, ASSIGN, PURCHASE, STOCK, RESET_PLAYER, PURCHASE_COUNT, REROLL, RESET_CYCLE, GLOBAL_ASSIGN;
+
+        private static final Type[] VALUES = values();
+
+        static Type fromId(int id) {
+            return id >= 0 && id < VALUES.length ? VALUES[id] : null;
+        }
+    }
+
+    public static JournalRecord reveal(UUID playerUUID, int slot) {
+        return new JournalRecord(Type.REVEAL, playerUUID, slot, null, false, 0.0, 0, 0L, 0L);
+    }
+
+    public static JournalRecord assign(UUID playerUUID, int slot, String itemKey, boolean discounted, double price) {
+        return new JournalRecord(Type.ASSIGN, playerUUID, slot, itemKey, discounted, price, 0, 0L, 0L);
+    }
+
+    /**
+     * Records one of the global items drawn for a new cycle. They follow the cycle's {@link #resetCycle} record.
+     */
+    public static JournalRecord assignGlobal(int slot, String itemKey, boolean discounted, double price) {
+        return new JournalRecord(Type.GLOBAL_ASSIGN, null, slot, itemKey, discounted, price, 0, 0L, 0L);
+    }
+
+    /**
+     * @param globalMode true if the purchase was made in GLOBAL stock mode (one purchase per item),
+     *                   false if it counts towards the player's personal stock. New PLAYER mode purchases
+     *                   are recorded with {@link #purchaseCount(UUID, String, int)} instead.
+     */
+    public static JournalRecord purchase(UUID playerUUID, String itemKey, boolean globalMode) {
+        return new JournalRecord(Type.PURCHASE, playerUUID, 0, itemKey, globalMode, 0.0, 0, 0L, 0L);
+    }
+
+    /**
+     * Records a player's purchase count for an item after a PLAYER mode purchase. Like {@link #stock(String, int)},
+     * the absolute value is stored so replaying on top of newer player data is harmless.
+     */
+    public static JournalRecord purchaseCount(UUID playerUUID, String itemKey, int count) {
+        return new JournalRecord(Type.PURCHASE_COUNT, playerUUID, 0, itemKey, false, 0.0, count, 0L, 0L);
+    }
+
+    /**
+     * Records the remaining global stock after a change. The absolute value is stored so replaying is idempotent.
+     */
+    public static JournalRecord stock(String itemKey, int remaining) {
+        return new JournalRecord(Type.STOCK, null, 0, itemKey, false, 0.0, remaining, 0L, 0L);
+    }
+
+    public static JournalRecord resetPlayer(UUID playerUUID) {
+        return new JournalRecord(Type.RESET_PLAYER, playerUUID, 0, null, false, 0.0, 0, 0L, 0L);
+    }
+
+    /**
+     * Records a reset of a player's data in a seeded cycle, with the player's new reroll count as an absolute value.
+     */
+    public static JournalRecord reroll(UUID playerUUID, int rerolls) {
+        return new JournalRecord(Type.REROLL, playerUUID, 0, null, false, 0.0, rerolls, 0L, 0L);
+    }
+
+    /**
+     * Records the start of a new cycle. Everything journaled before it belongs to the previous cycle, so replay
+     * discards it instead of applying it on top of a snapshot that predates the reset.
+     *
+     * @param marketOpen true if the market is open in the new cycle.
+     */
+    public static JournalRecord resetCycle(long cycleEpoch, long cycleSeed, boolean marketOpen) {
+        return new JournalRecord(Type.RESET_CYCLE, null, 0, null, marketOpen, 0.0, 0, cycleEpoch, cycleSeed);
+    }
+}
@@ -0,0 +1,177 @@
+package me.allync.nightmarket.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Global stock kept in a fixed-layout, memory-mapped file.
+ * <p>
+ * Layout: a header (magic, version, item count, offset of the stock slots), the item keys in slot order as
+ * length-prefixed UTF-8, then one big-endian int per item. Every write lands in the OS page cache straight away,
+ * so the stock survives the server process dying between saves without anything being serialized.
+ * <p>
+ * The key layout is fixed when the table is opened. Items added by a later reload are not in the table until the
+ * next start.
+ */
+public final class MappedStockTable {
+
+    private static final int MAGIC = 0x4E4D534B; // "NMSK"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final Map<String, Integer> slotOffsets;
+    private final Map<String, Integer> storedValues;
+
+    private MappedStockTable(FileChannel channel, MappedByteBuffer buffer, Map<String, Integer> slotOffsets, Map<String, Integer> storedValues) {
+        this.channel = channel;
+        this.buffer = buffer;
+        this.slotOffsets = slotOffsets;
+        this.storedValues = storedValues;
+    }
+
+    /**
+     * Opens the table for the given item keys. A file written for the same keys is mapped as it is; otherwise a new
+     * file is laid out, keeping the stock of every key the old file shared with the new layout.
+     */
+    public static MappedStockTable open(File file, List<String> keys, Logger logger) throws IOException {
+        Map<String, Integer> storedValues = Collections.emptyMap();
+        List<String> storedKeys = null;
+        if (file.exists()) {
+            try {
+                ByteBuffer existing = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+                storedKeys = new ArrayList<>();
+                storedValues = read(existing, storedKeys);
+            } catch (IOException | BufferUnderflowException | IndexOutOfBoundsException e) {
+                String reason = e instanceof IOException ? e.getMessage() : "the file is truncated.";
+                logger.warning("Could not read " + file.getName() + ", global stock will be rebuilt from the market state: " + reason);
+                storedKeys = null;
+                storedValues = Collections.emptyMap();
+            }
+        }
+
+        if (!keys.equals(storedKeys)) {
+            File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+            try (FileOutputStream out = new FileOutputStream(tempFile)) {
+                out.write(layout(keys, storedValues));
+                out.getFD().sync();
+            }
+            FileMarketStateStore.replaceFile(tempFile, file);
+        }
+
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            int slotsOffset = buffer.getInt(12);
+            Map<String, Integer> slotOffsets = new HashMap<>(keys.size() * 2);
+            for (int i = 0; i < keys.size(); i++) {
+                slotOffsets.put(keys.get(i), slotsOffset + i * Integer.BYTES);
+            }
+            Map<String, Integer> carried = new HashMap<>(storedValues);
+            carried.keySet().retainAll(slotOffsets.keySet());
+            return new MappedStockTable(channel, buffer, slotOffsets, Collections.unmodifiableMap(carried));
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static Map<String, Integer> read(ByteBuffer in, List<String> keys) throws IOException {
+        if (in.getInt() != MAGIC) {
+            throw new IOException("Not a NightMarket stock table.");
+        }
+        int version = in.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported stock table version " + version + ".");
+        }
+        int count = in.getInt();
+        int slotsOffset = in.getInt();
+        for (int i = 0; i < count; i++) {
+            byte[] key = new byte[in.getShort() & 0xFFFF];
+            in.get(key);
+            keys.add(new String(key, StandardCharsets.UTF_8));
+        }
+        Map<String, Integer> values = new HashMap<>(count * 2);
+        for (int i = 0; i < count; i++) {
+            values.put(keys.get(i), in.getInt(slotsOffset + i * Integer.BYTES));
+        }
+        return values;
+    }
+
+    private static byte[] layout(List<String> keys, Map<String, Integer> values) throws IOException {
+        ByteArrayOutputStream keyBytes = new ByteArrayOutputStream();
+        DataOutputStream keyOut = new DataOutputStream(keyBytes);
+        for (String key : keys) {
+            byte[] encoded = key.getBytes(StandardCharsets.UTF_8);
+            keyOut.writeShort(encoded.length);
+            keyOut.write(encoded);
+        }
+        // Slots start on a 4-byte boundary so each stock value is a single aligned int.
+        int slotsOffset = (HEADER_SIZE + keyBytes.size() + 3) & ~3;
+
+        ByteBuffer out = ByteBuffer.allocate(slotsOffset + keys.size() * Integer.BYTES);
+        out.putInt(MAGIC).putInt(VERSION).putInt(keys.size()).putInt(slotsOffset);
+        out.put(keyBytes.toByteArray());
+        for (int i = 0; i < keys.size(); i++) {
+            out.putInt(slotsOffset + i * Integer.BYTES, values.getOrDefault(keys.get(i), 0));
+        }
+        return out.array();
+    }
+
+    /**
+     * @return The stock the previous file held for keys that are still in the table, as found when it was opened.
+     */
+    public Map<String, Integer> getStoredValues() {
+        return storedValues;
+    }
+
+    /**
+     * @return The stock of the item, or null if the item has no slot in the table.
+     */
+    public Integer get(String key) {
+        Integer offset = slotOffsets.get(key);
+        return offset != null ? buffer.getInt(offset) : null;
+    }
+
+    /**
+     * Sets the stock of the item. Does nothing for items without a slot in the table.
+     */
+    public void set(String key, int value) {
+        Integer offset = slotOffsets.get(key);
+        if (offset != null) {
+            buffer.putInt(offset, value);
+        }
+    }
+
+    /**
+     * Overwrites every slot with the given stock. Items missing from the map are set to 0.
+     */
+    public void setAll(Map<String, Integer> stock) {
+        slotOffsets.forEach((key, offset) -> buffer.putInt(offset, stock.getOrDefault(key, 0)));
+    }
+
+    /**
+     * Flushes the mapped pages to disk and closes the file.
+     */
+    public void close() throws IOException {
+        buffer.force();
+        channel.close();
+    }
+}
@@ -0,0 +1,375 @@
+package me.allync.nightmarket.storage;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only write-ahead log of market state mutations.
+ * <p>
+ * Records are encoded on the calling thread and handed to a single journal thread, which writes every record
+ * queued since its last pass with one gathering write and at most one fsync (group commit). Once a checkpoint
+ * containing a record's sequence number is on disk the record is dropped from the journal by {@link #compact(long)}.
+ * <p>
+ * Each record is framed as {@code [int length][byte type][long sequence][body][int crc32]}, so a torn write at the
+ * end of the file is detected and ignored on replay.
+ */
+public class MarketJournal {
+
+    private static final int MAX_RECORD_LENGTH = 64 * 1024;
+
+    private final Logger logger;
+    private final File journalFile;
+    private final boolean fsync;
+    private final long compactThresholdBytes;
+    private final Runnable checkpointRequest;
+
+    private final ExecutorService io;
+    private final ConcurrentLinkedQueue<ByteBuffer> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicBoolean checkpointRequested = new AtomicBoolean();
+
+    private FileChannel channel;
+
+    public MarketJournal(Logger logger, File journalFile, boolean fsync, long compactThresholdBytes, Runnable checkpointRequest) {
+        this.logger = logger;
+        this.journalFile = journalFile;
+        this.fsync = fsync;
+        this.compactThresholdBytes = compactThresholdBytes;
+        this.checkpointRequest = checkpointRequest;
+        this.io = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "NightMarket-Journal");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Reads every intact record with a sequence number greater than {@code afterSequence}.
+     * Must be called before {@link #open(long, boolean)}.
+     *
+     * @return The highest sequence number found in the journal, or {@code afterSequence} if there was none.
+     */
+    public long replay(long afterSequence, Consumer<JournalRecord> consumer) {
+        long lastSequence = afterSequence;
+        if (!journalFile.exists()) {
+            return lastSequence;
+        }
+
+        int replayed = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+            while (true) {
+                RawRecord raw = readRaw(in);
+                if (raw == null) break;
+                lastSequence = Math.max(lastSequence, raw.sequence);
+                if (raw.sequence > afterSequence) {
+                    consumer.accept(decode(raw.payload));
+                    replayed++;
+                }
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Stopped reading " + journalFile.getName() + " early.", e);
+        }
+
+        if (replayed > 0) {
+            logger.info("Replayed " + replayed + " record(s) from " + journalFile.getName() + ".");
+        }
+        return lastSequence;
+    }
+
+    /**
+     * Opens the journal for appending.
+     *
+     * @param lastSequence The sequence number new records continue from.
+     * @param truncate     true to discard the existing journal contents, e.g. when the cycle they belong to has ended.
+     */
+    public void open(long lastSequence, boolean truncate) {
+        sequence.set(lastSequence);
+        runOnJournalThread(() -> {
+            closeChannel();
+            channel = truncate
+                    ? FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)
+                    : FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            return null;
+        });
+    }
+
+    /**
+     * Queues a record for the next group commit.
+     *
+     * @return The sequence number assigned to the record.
+     */
+    public synchronized long append(JournalRecord record) {
+        long seq = sequence.incrementAndGet();
+        pending.add(encode(seq, record));
+        if (drainScheduled.compareAndSet(false, true)) {
+            io.execute(this::drain);
+        }
+        return seq;
+    }
+
+    /**
+     * @return The sequence number of the most recently appended record.
+     */
+    public long getSequence() {
+        return sequence.get();
+    }
+
+    /**
+     * Drops every record covered by a checkpoint taken at {@code checkpointSequence}. Runs on the journal thread.
+     */
+    public void compact(long checkpointSequence) {
+        io.execute(() -> {
+            try {
+                compactNow(checkpointSequence);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Could not compact " + journalFile.getName() + ".", e);
+            } finally {
+                checkpointRequested.set(false);
+            }
+        });
+    }
+
+    /**
+     * Blocks until every appended record has been written.
+     */
+    public void flush() {
+        runOnJournalThread(() -> {
+            drain();
+            return null;
+        });
+    }
+
+    /**
+     * Flushes outstanding records and releases the file. Call after the final checkpoint has been written.
+     */
+    public void close(long checkpointSequence) {
+        runOnJournalThread(() -> {
+            drain();
+            compactNow(checkpointSequence);
+            closeChannel();
+            return null;
+        });
+        io.shutdown();
+    }
+
+    private void drain() {
+        drainScheduled.set(false);
+        if (channel == null) return;
+
+        List<ByteBuffer> batch = new ArrayList<>();
+        ByteBuffer next;
+        while ((next = pending.poll()) != null) {
+            batch.add(next);
+        }
+        if (batch.isEmpty()) return;
+
+        try {
+            ByteBuffer[] buffers = batch.toArray(new ByteBuffer[0]);
+            long remaining = 0;
+            for (ByteBuffer buffer : buffers) remaining += buffer.remaining();
+            while (remaining > 0) {
+                remaining -= channel.write(buffers);
+            }
+            if (fsync) {
+                channel.force(false);
+            }
+            if (channel.size() > compactThresholdBytes && checkpointRequested.compareAndSet(false, true)) {
+                checkpointRequest.run();
+            }
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Could not write to " + journalFile.getName() + ". Recent purchases may not survive a crash.", e);
+        }
+    }
+
+    private void compactNow(long checkpointSequence) throws IOException {
+        if (channel == null) return;
+        channel.force(false);
+
+        ByteArrayOutputStream kept = new ByteArrayOutputStream();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+            RawRecord raw;
+            while ((raw = readRaw(in)) != null) {
+                if (raw.sequence > checkpointSequence) {
+                    kept.write(frame(raw.payload).array());
+                }
+            }
+        }
+
+        closeChannel();
+        File tempFile = new File(journalFile.getParentFile(), journalFile.getName() + ".tmp");
+        try (FileChannel tempChannel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(kept.toByteArray());
+            while (buffer.hasRemaining()) {
+                tempChannel.write(buffer);
+            }
+            tempChannel.force(true);
+        }
+        FileMarketStateStore.replaceFile(tempFile, journalFile);
+        channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private void closeChannel() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    private void runOnJournalThread(IOTask task) {
+        try {
+            io.submit(() -> {
+                task.run();
+                return null;
+            }).get(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            logger.log(Level.SEVERE, "Journal operation on " + journalFile.getName() + " failed.", e);
+        }
+    }
+
+    private interface IOTask {
+        Object run() throws IOException;
+    }
+
+    private static ByteBuffer encode(long seq, JournalRecord record) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(48);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(record.type().ordinal());
+            out.writeLong(seq);
+            switch (record.type()) {
+                case REVEAL -> {
+                    writeUUID(out, record.playerUUID());
+                    out.writeInt(record.slot());
+                }
+                case ASSIGN -> {
+                    writeUUID(out, record.playerUUID());
+                    out.writeInt(record.slot());
+                    out.writeUTF(record.itemKey());
+                    out.writeBoolean(record.flag());
+                    out.writeDouble(record.price());
+                }
+                case PURCHASE -> {
+                    writeUUID(out, record.playerUUID());
+                    out.writeUTF(record.itemKey());
+                    out.writeBoolean(record.flag());
+                }
+                case STOCK -> {
+                    out.writeUTF(record.itemKey());
+                    out.writeInt(record.value());
+                }
+                case RESET_PLAYER -> writeUUID(out, record.playerUUID());
+                case PURCHASE_COUNT -> {
+                    writeUUID(out, record.playerUUID());
+                    out.writeUTF(record.itemKey());
+                    out.writeInt(record.value());
+                }
+                case REROLL -> {
+                    writeUUID(out, record.playerUUID());
+                    out.writeInt(record.value());
+                }
+                case GLOBAL_ASSIGN -> {
+                    out.writeInt(record.slot());
+                    out.writeUTF(record.itemKey());
+                    out.writeBoolean(record.flag());
+                    out.writeDouble(record.price());
+                }
+                case RESET_CYCLE -> {
+                    out.writeLong(record.cycleEpoch());
+                    out.writeLong(record.cycleSeed());
+                    out.writeBoolean(record.flag());
+                }
+            }
+            return frame(bytes.toByteArray());
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not encode journal record " + record, e);
+        }
+    }
+
+    private static JournalRecord decode(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        JournalRecord.Type type = JournalRecord.Type.fromId(in.readUnsignedByte());
+        in.readLong();
+        if (type == null) {
+            throw new IOException("Unknown journal record type.");
+        }
+        return switch (type) {
+            case REVEAL -> JournalRecord.reveal(readUUID(in), in.readInt());
+            case ASSIGN -> JournalRecord.assign(readUUID(in), in.readInt(), in.readUTF(), in.readBoolean(), in.readDouble());
+            case PURCHASE -> JournalRecord.purchase(readUUID(in), in.readUTF(), in.readBoolean());
+            case STOCK -> JournalRecord.stock(in.readUTF(), in.readInt());
+            case RESET_PLAYER -> JournalRecord.resetPlayer(readUUID(in));
+            case PURCHASE_COUNT -> JournalRecord.purchaseCount(readUUID(in), in.readUTF(), in.readInt());
+            case REROLL -> JournalRecord.reroll(readUUID(in), in.readInt());
+            case RESET_CYCLE -> JournalRecord.resetCycle(in.readLong(), in.readLong(), in.readBoolean());
+            case GLOBAL_ASSIGN -> JournalRecord.assignGlobal(in.readInt(), in.readUTF(), in.readBoolean(), in.readDouble());
+        };
+    }
+
+    private static ByteBuffer frame(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer buffer = ByteBuffer.allocate(4 + payload.length + 4);
+        buffer.putInt(payload.length).put(payload).putInt((int) crc.getValue());
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * @return The next intact record, or null at the end of the journal or at the first torn or corrupt record.
+     */
+    private static RawRecord readRaw(DataInputStream in) throws IOException {
+        try {
+            int length = in.readInt();
+            if (length < 9 || length > MAX_RECORD_LENGTH) return null;
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            int storedCrc = in.readInt();
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            if ((int) crc.getValue() != storedCrc) return null;
+            long seq = ByteBuffer.wrap(payload, 1, 8).getLong();
+            return new RawRecord(seq, payload);
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private record RawRecord(long sequence, byte[] payload) {}
+
+    private static void writeUUID(DataOutputStream out, UUID uuid) throws IOException {
+        out.writeLong(uuid.getMostSignificantBits());
+        out.writeLong(uuid.getLeastSignificantBits());
+    }
+
+    private static UUID readUUID(DataInputStream in) throws IOException {
+        return new UUID(in.readLong(), in.readLong());
+    }
+}
@@ -0,0 +1,324 @@
+package me.allync.nightmarket.storage;
+
+import me.allync.nightmarket.NightMarket;
+import org.bukkit.Bukkit;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+import java.util.logging.Level;
+
+/**
+ * Writes market state snapshots to disk without holding the server thread.
+ * <p>
+ * Save requests that arrive within the configured delay are merged into one. The snapshot itself is
+ * taken on the main thread when the delay expires, then serialized and written on a single background thread.
+ * Player loads, saves and clears run on the same thread, so they always observe each other in order.
+ * <p>
+ * Snapshots only carry what changed since the previous one. When a snapshot is skipped or fails to write, its
+ * changes are folded into the next write so nothing is lost.
+ */
+public class MarketStatePersistence {
+
+    // Players checked per writer task while sweeping, so queued saves never wait behind a whole sweep.
+    private static final int SWEEP_BATCH_SIZE = 256;
+
+    private final NightMarket plugin;
+    private final MarketStateStore store;
+    private final Supplier<MarketStateSnapshot> snapshotSupplier;
+    private final ExecutorService writer;
+    private final AtomicLong latestQueuedSave = new AtomicLong();
+    private final AtomicLong sweepEpoch = new AtomicLong(-1L);
+
+    // Changes from snapshots that were skipped or failed to write. Only touched on the writer thread.
+    private final Map<UUID, MarketStateSnapshot.PlayerState> unsavedPlayers = new HashMap<>();
+    private boolean unsavedGlobalItems;
+    private boolean unsavedGlobalStock;
+    private long sweptEpoch = -1L;
+
+    private BukkitTask pendingSave;
+    private volatile Consumer<MarketStateSnapshot> saveListener;
+
+    public MarketStatePersistence(NightMarket plugin, MarketStateStore store, Supplier<MarketStateSnapshot> snapshotSupplier) {
+        this.plugin = plugin;
+        this.store = store;
+        this.snapshotSupplier = snapshotSupplier;
+        this.writer = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "NightMarket-StateWriter");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Sets a callback that runs on the writer thread after a snapshot has been written successfully.
+     */
+    public void setSaveListener(Consumer<MarketStateSnapshot> saveListener) {
+        this.saveListener = saveListener;
+    }
+
+    /**
+     * Schedules a save. Calls made before the pending save runs are merged into it.
+     * Must be called from the main thread.
+     */
+    public void requestSave() {
+        if (!plugin.isEnabled()) {
+            saveNow();
+            return;
+        }
+        if (pendingSave != null) {
+            return;
+        }
+        long delayTicks = Math.max(1L, plugin.getConfigManager().getStateSaveDelayTicks());
+        pendingSave = Bukkit.getScheduler().runTaskLater(plugin, this::flush, delayTicks);
+    }
+
+    /**
+     * Takes a snapshot immediately and blocks until it, and every save queued before it, is on disk.
+     * Must be called from the main thread.
+     */
+    public void saveNow() {
+        cancelPendingSave();
+        Future<?> future = submit(snapshotSupplier.get());
+        try {
+            future.get(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            plugin.getLogger().log(Level.SEVERE, "Could not save market state to " + store.getName() + ".", e);
+        }
+    }
+
+    /**
+     * Loads a player's stored data on the writer thread, so it reflects every write queued before this call.
+     * Blocks until the data has been read; call it off the main thread where possible.
+     *
+     * @return The player's data, or null if nothing is stored for them or it could not be read.
+     */
+    public MarketStateSnapshot.PlayerState loadPlayer(UUID playerUUID) {
+        try {
+            return writer.submit(() -> store.loadPlayer(playerUUID)).get(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            plugin.getLogger().log(Level.SEVERE, "Could not load market data for player " + playerUUID + " from " + store.getName() + ".", e);
+        }
+        return null;
+    }
+
+    /**
+     * Loads a player's stored data on the writer thread without waiting for it, e.g. when they join.
+     *
+     * @return A future completed with the player's data, or with null if nothing is stored for them or it could not be read.
+     */
+    public CompletableFuture<MarketStateSnapshot.PlayerState> loadPlayerAsync(UUID playerUUID) {
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return store.loadPlayer(playerUUID);
+                } catch (IOException e) {
+                    plugin.getLogger().log(Level.SEVERE, "Could not load market data for player " + playerUUID + " from " + store.getName() + ".", e);
+                    return null;
+                }
+            }, writer);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    /**
+     * Queues a write of a single player's data, e.g. when they leave.
+     */
+    public void savePlayer(UUID playerUUID, MarketStateSnapshot.PlayerState state) {
+        writer.execute(() -> {
+            unsavedPlayers.remove(playerUUID);
+            try {
+                store.savePlayer(playerUUID, state);
+            } catch (IOException e) {
+                plugin.getLogger().severe("Could not save market data for player " + playerUUID + ": " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Queues a read and rewrite of a single player's stored data on the writer thread, e.g. to reset a player who is
+     * offline. {@code update} runs on the writer thread and is given null if nothing is stored for the player.
+     */
+    public void updatePlayer(UUID playerUUID, UnaryOperator<MarketStateSnapshot.PlayerState> update) {
+        writer.execute(() -> {
+            unsavedPlayers.remove(playerUUID);
+            try {
+                store.savePlayer(playerUUID, update.apply(store.loadPlayer(playerUUID)));
+            } catch (IOException e) {
+                plugin.getLogger().severe("Could not update market data for player " + playerUUID + ": " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Queues the removal of every player's stored data, e.g. when a new cycle starts.
+     */
+    public void clearPlayers() {
+        writer.execute(() -> {
+            unsavedPlayers.clear();
+            try {
+                store.clearPlayers();
+            } catch (IOException e) {
+                plugin.getLogger().severe("Could not clear stored player data in " + store.getName() + ": " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Starts a new cycle epoch without touching the stored players: their data is simply ignored from now on because
+     * its epoch no longer matches. Once a snapshot of the new epoch has been written, a background sweep removes the
+     * old data a batch at a time. Starting another epoch stops the sweep of the previous one.
+     */
+    public void startEpoch(long epoch) {
+        sweepEpoch.set(epoch);
+        writer.execute(unsavedPlayers::clear);
+    }
+
+    private void startSweep(long epoch) {
+        writer.execute(() -> {
+            List<UUID> storedPlayers;
+            try {
+                storedPlayers = new ArrayList<>(store.getPlayersOutsideEpoch(epoch));
+            } catch (IOException e) {
+                plugin.getLogger().warning("Could not list stored players in " + store.getName() + ", data from earlier cycles is left in place: " + e.getMessage());
+                return;
+            }
+            sweep(storedPlayers, 0, epoch, 0);
+        });
+    }
+
+    /**
+     * Removes the players in one batch of {@code players} whose data still belongs to another epoch, then queues the next batch.
+     * Runs on the writer thread.
+     */
+    private void sweep(List<UUID> players, int from, long epoch, int removed) {
+        // A sweep cut short by a shutdown is left for the next epoch's sweep; the data it missed is ignored until then.
+        if (sweepEpoch.get() != epoch || writer.isShutdown()) {
+            return;
+        }
+        int to = Math.min(from + SWEEP_BATCH_SIZE, players.size());
+        int removedNow = removed;
+        for (UUID playerUUID : players.subList(from, to)) {
+            try {
+                // Checked again, since the player may have been saved in the new epoch since the sweep started.
+                if (store.removePlayerOutsideEpoch(playerUUID, epoch)) {
+                    removedNow++;
+                }
+            } catch (IOException e) {
+                plugin.getLogger().warning("Could not remove old market data for player " + playerUUID + ": " + e.getMessage());
+            }
+        }
+        if (to < players.size()) {
+            int totalRemoved = removedNow;
+            try {
+                writer.execute(() -> sweep(players, to, epoch, totalRemoved));
+            } catch (RejectedExecutionException e) {
+                // Shutting down.
+            }
+        } else if (removedNow > 0) {
+            plugin.getLogger().info("Removed market data from earlier cycles for " + removedNow + " player(s) in " + store.getName() + ".");
+        }
+    }
+
+    /**
+     * Flushes the latest state synchronously, stops the writer thread and closes the store.
+     */
+    public void shutdown() {
+        saveNow();
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(10, TimeUnit.SECONDS)) {
+                plugin.getLogger().warning("Market state writer did not finish in time.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        store.close();
+    }
+
+    private void flush() {
+        pendingSave = null;
+        submit(snapshotSupplier.get());
+    }
+
+    private void cancelPendingSave() {
+        if (pendingSave != null) {
+            pendingSave.cancel();
+            pendingSave = null;
+        }
+    }
+
+    private Future<?> submit(MarketStateSnapshot snapshot) {
+        long saveId = latestQueuedSave.incrementAndGet();
+        return writer.submit(() -> {
+            // A newer snapshot is already queued behind this one, so its changes are written along with that one.
+            if (saveId != latestQueuedSave.get()) {
+                keepUnsaved(snapshot);
+                return;
+            }
+            write(withUnsaved(snapshot));
+        });
+    }
+
+    private void write(MarketStateSnapshot snapshot) {
+        try {
+            store.save(snapshot);
+        } catch (IOException e) {
+            plugin.getLogger().severe("Could not save market state to " + store.getName() + ": " + e.getMessage());
+            keepUnsaved(snapshot);
+            return;
+        }
+        unsavedPlayers.clear();
+        unsavedGlobalItems = false;
+        unsavedGlobalStock = false;
+
+        // Until the new epoch is on disk, a restart would still load the previous cycle and needs its player data.
+        if (snapshot.getCycleEpoch() == sweepEpoch.get() && snapshot.getCycleEpoch() != sweptEpoch) {
+            sweptEpoch = snapshot.getCycleEpoch();
+            startSweep(sweptEpoch);
+        }
+
+        Consumer<MarketStateSnapshot> listener = saveListener;
+        if (listener != null) {
+            listener.accept(snapshot);
+        }
+    }
+
+    private void keepUnsaved(MarketStateSnapshot snapshot) {
+        unsavedPlayers.putAll(snapshot.getPlayers());
+        unsavedGlobalItems |= snapshot.isGlobalItemsChanged();
+        unsavedGlobalStock |= snapshot.isGlobalStockChanged();
+    }
+
+    private MarketStateSnapshot withUnsaved(MarketStateSnapshot snapshot) {
+        if (unsavedPlayers.isEmpty() && !unsavedGlobalItems && !unsavedGlobalStock) {
+            return snapshot;
+        }
+        Map<UUID, MarketStateSnapshot.PlayerState> players = new HashMap<>(unsavedPlayers);
+        players.putAll(snapshot.getPlayers());
+        return new MarketStateSnapshot(snapshot.isMarketOpen(), snapshot.getTimeRemainingSeconds(), snapshot.getSavedTimestamp(),
+                snapshot.getJournalSequence(), snapshot.getCycleSeed(), snapshot.getCycleEpoch(), snapshot.getGlobalAssignedItems(), snapshot.getGlobalItemStock(), players,
+                snapshot.isGlobalItemsChanged() || unsavedGlobalItems, snapshot.isGlobalStockChanged() || unsavedGlobalStock);
+    }
+}
@@ -0,0 +1,114 @@
+package me.allync.nightmarket.storage;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Immutable copy of everything the MarketManager persists.
+ * Snapshots are taken on the main thread and can then be serialized on any thread.
+ * <p>
+ * Snapshots taken for a save only carry the players whose data changed since the previous snapshot, and flag which
+ * market-wide sections changed, so stores can leave everything else as it is.
+ */
+public class MarketStateSnapshot {
+
+    private final boolean marketOpen;
+    private final long timeRemainingSeconds;
+    private final long savedTimestamp;
+    private final long journalSequence;
+    private final long cycleSeed;
+    private final long cycleEpoch;
+    private final Map<Integer, StoredItem> globalAssignedItems;
+    private final Map<String, Integer> globalItemStock;
+    private final Map<UUID, PlayerState> players;
+    private final boolean globalItemsChanged;
+    private final boolean globalStockChanged;
+
+    public MarketStateSnapshot(boolean marketOpen, long timeRemainingSeconds, long savedTimestamp, long journalSequence, long cycleSeed,
+                               long cycleEpoch, Map<Integer, StoredItem> globalAssignedItems, Map<String, Integer> globalItemStock,
+                               Map<UUID, PlayerState> players) {
+        this(marketOpen, timeRemainingSeconds, savedTimestamp, journalSequence, cycleSeed, cycleEpoch, globalAssignedItems, globalItemStock,
+                players, true, true);
+    }
+
+    public MarketStateSnapshot(boolean marketOpen, long timeRemainingSeconds, long savedTimestamp, long journalSequence, long cycleSeed,
+                               long cycleEpoch, Map<Integer, StoredItem> globalAssignedItems, Map<String, Integer> globalItemStock,
+                               Map<UUID, PlayerState> players, boolean globalItemsChanged, boolean globalStockChanged) {
+        this.marketOpen = marketOpen;
+        this.timeRemainingSeconds = timeRemainingSeconds;
+        this.savedTimestamp = savedTimestamp;
+        this.journalSequence = journalSequence;
+        this.cycleSeed = cycleSeed;
+        this.cycleEpoch = cycleEpoch;
+        this.globalAssignedItems = Collections.unmodifiableMap(new HashMap<>(globalAssignedItems));
+        this.globalItemStock = Collections.unmodifiableMap(new HashMap<>(globalItemStock));
+        this.players = Collections.unmodifiableMap(new HashMap<>(players));
+        this.globalItemsChanged = globalItemsChanged;
+        this.globalStockChanged = globalStockChanged;
+    }
+
+    public boolean isMarketOpen() { return marketOpen; }
+    public long getTimeRemainingSeconds() { return timeRemainingSeconds; }
+    public long getSavedTimestamp() { return savedTimestamp; }
+    /** The sequence number of the last journal record included in this snapshot. */
+    public long getJournalSequence() { return journalSequence; }
+    /** The seed personal assignments are derived from in this cycle, or 0 if they are stored per player. */
+    public long getCycleSeed() { return cycleSeed; }
+    /** Counts the cycle resets. Stored player data from any other epoch belongs to an earlier cycle and is treated as empty. */
+    public long getCycleEpoch() { return cycleEpoch; }
+    public Map<Integer, StoredItem> getGlobalAssignedItems() { return globalAssignedItems; }
+    public Map<String, Integer> getGlobalItemStock() { return globalItemStock; }
+    public Map<UUID, PlayerState> getPlayers() { return players; }
+    /** Whether the global items differ from the previous snapshot. Always true for snapshots read from a store. */
+    public boolean isGlobalItemsChanged() { return globalItemsChanged; }
+    /** Whether the global stock differs from the previous snapshot. Always true for snapshots read from a store. */
+    public boolean isGlobalStockChanged() { return globalStockChanged; }
+
+    /**
+     * A persisted market assignment: the item key, whether the discount was rolled and the price the player was shown.
+     */
+    public record StoredItem(String key, boolean discounted, double price) {}
+
+    /**
+     * Everything stored for a single player in the current cycle.
+     */
+    public static class PlayerState {
+        private final Map<Integer, StoredItem> assignedItems;
+        private final Set<Integer> revealedSlots;
+        private final Set<String> purchasedKeys;
+        private final Map<String, Integer> purchaseCounts;
+        private final int rerolls;
+        private final long epoch;
+
+        public PlayerState(Map<Integer, StoredItem> assignedItems, Set<Integer> revealedSlots, Set<String> purchasedKeys, Map<String, Integer> purchaseCounts) {
+            this(assignedItems, revealedSlots, purchasedKeys, purchaseCounts, 0, 0L);
+        }
+
+        public PlayerState(Map<Integer, StoredItem> assignedItems, Set<Integer> revealedSlots, Set<String> purchasedKeys,
+                           Map<String, Integer> purchaseCounts, int rerolls, long epoch) {
+            this.assignedItems = Collections.unmodifiableMap(new HashMap<>(assignedItems));
+            this.revealedSlots = Collections.unmodifiableSet(new HashSet<>(revealedSlots));
+            this.purchasedKeys = Collections.unmodifiableSet(new HashSet<>(purchasedKeys));
+            this.purchaseCounts = Collections.unmodifiableMap(new HashMap<>(purchaseCounts));
+            this.rerolls = rerolls;
+            this.epoch = epoch;
+        }
+
+        public Map<Integer, StoredItem> getAssignedItems() { return assignedItems; }
+        public Set<Integer> getRevealedSlots() { return revealedSlots; }
+        public Set<String> getPurchasedKeys() { return purchasedKeys; }
+        public Map<String, Integer> getPurchaseCounts() { return purchaseCounts; }
+        /** How many times the player's assignments were reset in a seeded cycle. Part of their assignment seed. */
+        public int getRerolls() { return rerolls; }
+        /** The cycle epoch the data was written in. */
+        public long getEpoch() { return epoch; }
+
+        public boolean isEmpty() {
+            return assignedItems.isEmpty() && revealedSlots.isEmpty() && purchasedKeys.isEmpty() && purchaseCounts.isEmpty() && rerolls == 0;
+        }
+    }
+}
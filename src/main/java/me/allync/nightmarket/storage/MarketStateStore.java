@@ -0,0 +1,97 @@
+package me.allync.nightmarket.storage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * A place the market state can be loaded from and saved to.
+ * <p>
+ * The market-wide state is loaded once at startup. Player data is kept per player, so it can be loaded when the
+ * player joins and written back when they leave.
+ * <p>
+ * Stores are used from one thread at a time: the main thread during startup, the state writer thread afterwards.
+ */
+public interface MarketStateStore {
+
+    /**
+     * @return A short description of where the state is kept, used in log messages.
+     */
+    String getName();
+
+    /**
+     * @return When the stored state was last written, in milliseconds since the epoch, or 0 if nothing is stored.
+     * Must not create anything on disk.
+     */
+    long getLastModified();
+
+    /**
+     * @return The stored market-wide state, or null if nothing is stored yet. Its players are empty unless the
+     * store still holds player data in a legacy layout.
+     * @throws IOException If the stored state exists but cannot be read.
+     */
+    MarketStateSnapshot load() throws IOException;
+
+    /**
+     * Writes the market-wide state and the data of every player in the snapshot.
+     */
+    void save(MarketStateSnapshot snapshot) throws IOException;
+
+    /**
+     * @return The player's stored data, or null if nothing is stored for them.
+     */
+    MarketStateSnapshot.PlayerState loadPlayer(UUID playerUUID) throws IOException;
+
+    /**
+     * Writes the player's data, or removes it if the state is empty.
+     */
+    void savePlayer(UUID playerUUID, MarketStateSnapshot.PlayerState state) throws IOException;
+
+    /**
+     * Removes the stored data of every player.
+     */
+    void clearPlayers() throws IOException;
+
+    /**
+     * @return Every player with stored data. Only used when moving data between stores.
+     */
+    Collection<UUID> getStoredPlayers() throws IOException;
+
+    /**
+     * @return Every player whose stored data is from an epoch other than {@code epoch}. Used to sweep out old cycles,
+     * so stores should answer it without loading each player.
+     */
+    default Collection<UUID> getPlayersOutsideEpoch(long epoch) throws IOException {
+        List<UUID> players = new ArrayList<>();
+        for (UUID playerUUID : getStoredPlayers()) {
+            MarketStateSnapshot.PlayerState state = loadPlayer(playerUUID);
+            if (state != null && state.getEpoch() != epoch) {
+                players.add(playerUUID);
+            }
+        }
+        return players;
+    }
+
+    /**
+     * Removes the player's stored data if it is still from an epoch other than {@code epoch}.
+     *
+     * @return Whether anything was removed.
+     */
+    default boolean removePlayerOutsideEpoch(UUID playerUUID, long epoch) throws IOException {
+        MarketStateSnapshot.PlayerState state = loadPlayer(playerUUID);
+        if (state == null || state.getEpoch() == epoch) {
+            return false;
+        }
+        savePlayer(playerUUID, new MarketStateSnapshot.PlayerState(Collections.emptyMap(), Collections.emptySet(),
+                Collections.emptySet(), Collections.emptyMap()));
+        return true;
+    }
+
+    /**
+     * Releases any open files or connections. Called after the final save.
+     */
+    void close();
+}
@@ -0,0 +1,22 @@
+package me.allync.nightmarket.storage;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Collects a player's state while it is read section by section.
+ */
+class MutablePlayerState {
+    final Map<Integer, MarketStateSnapshot.StoredItem> assignedItems = new HashMap<>();
+    final Set<Integer> revealedSlots = new HashSet<>();
+    final Set<String> purchasedKeys = new HashSet<>();
+    final Map<String, Integer> purchaseCounts = new HashMap<>();
+    int rerolls;
+    long epoch;
+
+    MarketStateSnapshot.PlayerState toSnapshot() {
+        return new MarketStateSnapshot.PlayerState(assignedItems, revealedSlots, purchasedKeys, purchaseCounts, rerolls, epoch);
+    }
+}
@@ -0,0 +1,621 @@
+package me.allync.nightmarket.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the market state in an embedded SQLite database, market_state.db.
+ * <p>
+ * Every table is keyed by what the market looks rows up by (player UUID first for player data), so loading or saving
+ * one player uses the primary key index. A save compares the state with what was last written and only upserts or
+ * deletes the rows that changed, all inside one transaction.
+ */
+public class SqliteMarketStateStore implements MarketStateStore {
+
+    private static final String[] SCHEMA = {
+            "CREATE TABLE IF NOT EXISTS market_meta (id INTEGER PRIMARY KEY, market_open INTEGER NOT NULL, "
+                    + "time_remaining_seconds INTEGER NOT NULL, last_saved_timestamp INTEGER NOT NULL, journal_sequence INTEGER NOT NULL, "
+                    + "cycle_seed INTEGER NOT NULL DEFAULT 0, cycle_epoch INTEGER NOT NULL DEFAULT 0)",
+            "CREATE TABLE IF NOT EXISTS global_items (slot INTEGER PRIMARY KEY, item_key TEXT NOT NULL, discounted INTEGER NOT NULL, price REAL NOT NULL)",
+            "CREATE TABLE IF NOT EXISTS global_stock (item_key TEXT PRIMARY KEY, remaining INTEGER NOT NULL) WITHOUT ROWID",
+            "CREATE TABLE IF NOT EXISTS assigned_items (player_uuid TEXT NOT NULL, slot INTEGER NOT NULL, item_key TEXT NOT NULL, "
+                    + "discounted INTEGER NOT NULL, price REAL NOT NULL, PRIMARY KEY (player_uuid, slot)) WITHOUT ROWID",
+            "CREATE TABLE IF NOT EXISTS revealed_slots (player_uuid TEXT NOT NULL, slot INTEGER NOT NULL, "
+                    + "PRIMARY KEY (player_uuid, slot)) WITHOUT ROWID",
+            "CREATE TABLE IF NOT EXISTS purchased_items (player_uuid TEXT NOT NULL, item_key TEXT NOT NULL, "
+                    + "PRIMARY KEY (player_uuid, item_key)) WITHOUT ROWID",
+            "CREATE TABLE IF NOT EXISTS purchase_counts (player_uuid TEXT NOT NULL, item_key TEXT NOT NULL, purchase_count INTEGER NOT NULL, "
+                    + "PRIMARY KEY (player_uuid, item_key)) WITHOUT ROWID",
+            "CREATE TABLE IF NOT EXISTS player_rerolls (player_uuid TEXT PRIMARY KEY, rerolls INTEGER NOT NULL) WITHOUT ROWID",
+            "CREATE TABLE IF NOT EXISTS player_epochs (player_uuid TEXT PRIMARY KEY, epoch INTEGER NOT NULL) WITHOUT ROWID"
+    };
+
+    private static final String[] PLAYER_TABLES = {"assigned_items", "revealed_slots", "purchased_items", "purchase_counts", "player_rerolls",
+            "player_epochs"};
+
+    private static final String STORED_PLAYERS_QUERY = "SELECT player_uuid FROM assigned_items UNION SELECT player_uuid FROM revealed_slots "
+            + "UNION SELECT player_uuid FROM purchased_items UNION SELECT player_uuid FROM purchase_counts "
+            + "UNION SELECT player_uuid FROM player_rerolls UNION SELECT player_uuid FROM player_epochs";
+
+    private static final MarketStateSnapshot.PlayerState EMPTY_PLAYER = new MarketStateSnapshot.PlayerState(
+            Collections.emptyMap(), Collections.emptySet(), Collections.emptySet(), Collections.emptyMap());
+    private static final int SAVED_PLAYER_CACHE_SIZE = 1024;
+
+    private final File file;
+    private final Logger logger;
+
+    private Connection connection;
+    // What the database holds right now, so saves only touch changed rows. A null lastSaved, or a player missing
+    // from savedPlayers, means the rows are unknown and are replaced wholesale on the next write.
+    private MarketStateSnapshot lastSaved;
+    private final Map<UUID, MarketStateSnapshot.PlayerState> savedPlayers = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<UUID, MarketStateSnapshot.PlayerState> eldest) {
+            return size() > SAVED_PLAYER_CACHE_SIZE;
+        }
+    };
+
+    public SqliteMarketStateStore(File file, Logger logger) {
+        this.file = file;
+        this.logger = logger;
+    }
+
+    @Override
+    public String getName() {
+        return file.getName();
+    }
+
+    @Override
+    public long getLastModified() {
+        if (!file.exists()) {
+            return 0L;
+        }
+        // With write-ahead logging, recent commits may only have touched the -wal file.
+        File walFile = new File(file.getParentFile(), file.getName() + "-wal");
+        return Math.max(file.lastModified(), walFile.exists() ? walFile.lastModified() : 0L);
+    }
+
+    @Override
+    public synchronized MarketStateSnapshot load() throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            Connection c = connect();
+            boolean marketOpen;
+            long timeRemaining, savedTimestamp, journalSequence, cycleSeed, cycleEpoch;
+            try (Statement statement = c.createStatement();
+                 ResultSet rs = statement.executeQuery("SELECT market_open, time_remaining_seconds, last_saved_timestamp, journal_sequence, cycle_seed, "
+                         + "cycle_epoch FROM market_meta WHERE id = 0")) {
+                if (!rs.next()) {
+                    return null;
+                }
+                marketOpen = rs.getBoolean(1);
+                timeRemaining = rs.getLong(2);
+                savedTimestamp = rs.getLong(3);
+                journalSequence = rs.getLong(4);
+                cycleSeed = rs.getLong(5);
+                cycleEpoch = rs.getLong(6);
+            }
+
+            Map<Integer, MarketStateSnapshot.StoredItem> globalItems = new HashMap<>();
+            try (Statement statement = c.createStatement();
+                 ResultSet rs = statement.executeQuery("SELECT slot, item_key, discounted, price FROM global_items")) {
+                while (rs.next()) {
+                    globalItems.put(rs.getInt(1), new MarketStateSnapshot.StoredItem(rs.getString(2), rs.getBoolean(3), rs.getDouble(4)));
+                }
+            }
+
+            Map<String, Integer> stock = new HashMap<>();
+            try (Statement statement = c.createStatement();
+                 ResultSet rs = statement.executeQuery("SELECT item_key, remaining FROM global_stock")) {
+                while (rs.next()) {
+                    stock.put(rs.getString(1), rs.getInt(2));
+                }
+            }
+
+            MarketStateSnapshot snapshot = new MarketStateSnapshot(marketOpen, timeRemaining, savedTimestamp, journalSequence, cycleSeed,
+                    cycleEpoch, globalItems, stock, Collections.emptyMap());
+            lastSaved = snapshot;
+            return snapshot;
+        } catch (SQLException e) {
+            throw new IOException("Could not read " + file.getName() + ": " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public synchronized void save(MarketStateSnapshot snapshot) throws IOException {
+        inTransaction(c -> {
+            MarketStateSnapshot before = lastSaved;
+            if (before == null) {
+                try (Statement statement = c.createStatement()) {
+                    statement.executeUpdate("DELETE FROM global_items");
+                    statement.executeUpdate("DELETE FROM global_stock");
+                }
+            }
+            writeMarketWide(c, before, snapshot);
+            try (PlayerWriter writer = new PlayerWriter(c)) {
+                for (Map.Entry<UUID, MarketStateSnapshot.PlayerState> entry : snapshot.getPlayers().entrySet()) {
+                    writer.write(entry.getKey(), entry.getValue());
+                }
+                writer.flush();
+            }
+        });
+        lastSaved = snapshot;
+        savedPlayers.putAll(snapshot.getPlayers());
+    }
+
+    @Override
+    public synchronized MarketStateSnapshot.PlayerState loadPlayer(UUID playerUUID) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            Connection c = connect();
+            String uuid = playerUUID.toString();
+            MutablePlayerState state = new MutablePlayerState();
+            try (PreparedStatement query = c.prepareStatement("SELECT slot, item_key, discounted, price FROM assigned_items WHERE player_uuid = ?")) {
+                query.setString(1, uuid);
+                try (ResultSet rs = query.executeQuery()) {
+                    while (rs.next()) {
+                        state.assignedItems.put(rs.getInt(1), new MarketStateSnapshot.StoredItem(rs.getString(2), rs.getBoolean(3), rs.getDouble(4)));
+                    }
+                }
+            }
+            try (PreparedStatement query = c.prepareStatement("SELECT slot FROM revealed_slots WHERE player_uuid = ?")) {
+                query.setString(1, uuid);
+                try (ResultSet rs = query.executeQuery()) {
+                    while (rs.next()) {
+                        state.revealedSlots.add(rs.getInt(1));
+                    }
+                }
+            }
+            try (PreparedStatement query = c.prepareStatement("SELECT item_key FROM purchased_items WHERE player_uuid = ?")) {
+                query.setString(1, uuid);
+                try (ResultSet rs = query.executeQuery()) {
+                    while (rs.next()) {
+                        state.purchasedKeys.add(rs.getString(1));
+                    }
+                }
+            }
+            try (PreparedStatement query = c.prepareStatement("SELECT item_key, purchase_count FROM purchase_counts WHERE player_uuid = ?")) {
+                query.setString(1, uuid);
+                try (ResultSet rs = query.executeQuery()) {
+                    while (rs.next()) {
+                        state.purchaseCounts.put(rs.getString(1), rs.getInt(2));
+                    }
+                }
+            }
+            try (PreparedStatement query = c.prepareStatement("SELECT rerolls FROM player_rerolls WHERE player_uuid = ?")) {
+                query.setString(1, uuid);
+                try (ResultSet rs = query.executeQuery()) {
+                    if (rs.next()) {
+                        state.rerolls = rs.getInt(1);
+                    }
+                }
+            }
+            try (PreparedStatement query = c.prepareStatement("SELECT epoch FROM player_epochs WHERE player_uuid = ?")) {
+                query.setString(1, uuid);
+                try (ResultSet rs = query.executeQuery()) {
+                    if (rs.next()) {
+                        state.epoch = rs.getLong(1);
+                    }
+                }
+            }
+            MarketStateSnapshot.PlayerState playerState = state.toSnapshot();
+            savedPlayers.put(playerUUID, playerState);
+            return playerState.isEmpty() ? null : playerState;
+        } catch (SQLException e) {
+            throw new IOException("Could not read player " + playerUUID + " from " + file.getName() + ": " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public synchronized void savePlayer(UUID playerUUID, MarketStateSnapshot.PlayerState state) throws IOException {
+        inTransaction(c -> {
+            try (PlayerWriter writer = new PlayerWriter(c)) {
+                writer.write(playerUUID, state);
+                writer.flush();
+            }
+        });
+        savedPlayers.put(playerUUID, state);
+    }
+
+    @Override
+    public synchronized void clearPlayers() throws IOException {
+        inTransaction(c -> {
+            try (Statement statement = c.createStatement()) {
+                for (String table : PLAYER_TABLES) {
+                    statement.executeUpdate("DELETE FROM " + table);
+                }
+            }
+        });
+        savedPlayers.clear();
+    }
+
+    @Override
+    public synchronized Collection<UUID> getStoredPlayers() throws IOException {
+        if (!file.exists()) {
+            return Collections.emptyList();
+        }
+        try (Statement statement = connect().createStatement();
+             ResultSet rs = statement.executeQuery(STORED_PLAYERS_QUERY)) {
+            return readPlayers(rs);
+        } catch (SQLException e) {
+            throw new IOException("Could not list players in " + file.getName() + ": " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public synchronized Collection<UUID> getPlayersOutsideEpoch(long epoch) throws IOException {
+        if (!file.exists()) {
+            return Collections.emptyList();
+        }
+        // Reads the epochs only, and leaves savedPlayers alone so the sweep does not push out online players' rows.
+        try (PreparedStatement query = connect().prepareStatement("SELECT p.player_uuid FROM (" + STORED_PLAYERS_QUERY + ") p "
+                + "LEFT JOIN player_epochs e ON e.player_uuid = p.player_uuid WHERE COALESCE(e.epoch, 0) <> ?")) {
+            query.setLong(1, epoch);
+            try (ResultSet rs = query.executeQuery()) {
+                return readPlayers(rs);
+            }
+        } catch (SQLException e) {
+            throw new IOException("Could not list players in " + file.getName() + ": " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public synchronized boolean removePlayerOutsideEpoch(UUID playerUUID, long epoch) throws IOException {
+        String uuid = playerUUID.toString();
+        try (PreparedStatement query = connect().prepareStatement("SELECT epoch FROM player_epochs WHERE player_uuid = ?")) {
+            query.setString(1, uuid);
+            try (ResultSet rs = query.executeQuery()) {
+                if ((rs.next() ? rs.getLong(1) : 0L) == epoch) {
+                    return false;
+                }
+            }
+        } catch (SQLException e) {
+            throw new IOException("Could not read player " + playerUUID + " from " + file.getName() + ": " + e.getMessage(), e);
+        }
+        inTransaction(c -> {
+            for (String table : PLAYER_TABLES) {
+                try (PreparedStatement delete = c.prepareStatement("DELETE FROM " + table + " WHERE player_uuid = ?")) {
+                    delete.setString(1, uuid);
+                    delete.executeUpdate();
+                }
+            }
+        });
+        savedPlayers.remove(playerUUID);
+        return true;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (connection == null) {
+            return;
+        }
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            logger.log(Level.WARNING, "Could not close " + file.getName() + ".", e);
+        }
+        connection = null;
+    }
+
+    private List<UUID> readPlayers(ResultSet rs) throws SQLException {
+        List<UUID> players = new ArrayList<>();
+        while (rs.next()) {
+            try {
+                players.add(UUID.fromString(rs.getString(1)));
+            } catch (IllegalArgumentException e) {
+                logger.warning("Invalid UUID string in " + file.getName() + ": " + rs.getString(1));
+            }
+        }
+        return players;
+    }
+
+    private Connection connect() throws SQLException, IOException {
+        if (connection != null) {
+            return connection;
+        }
+        try {
+            // Plugin class loaders do not always see the server's JDBC drivers through the service loader.
+            Class.forName("org.sqlite.JDBC");
+        } catch (ClassNotFoundException e) {
+            throw new IOException("The SQLite JDBC driver is not available on this server.", e);
+        }
+        connection = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("PRAGMA journal_mode=WAL");
+            statement.execute("PRAGMA synchronous=NORMAL");
+            for (String sql : SCHEMA) {
+                statement.execute(sql);
+            }
+            upgradeSchema(statement);
+        }
+        return connection;
+    }
+
+    /**
+     * Adds the columns newer versions introduced to databases created before them.
+     */
+    private static void upgradeSchema(Statement statement) throws SQLException {
+        Set<String> metaColumns = new HashSet<>();
+        try (ResultSet rs = statement.executeQuery("PRAGMA table_info(market_meta)")) {
+            while (rs.next()) {
+                metaColumns.add(rs.getString("name"));
+            }
+        }
+        for (String column : new String[]{"cycle_seed", "cycle_epoch"}) {
+            if (!metaColumns.contains(column)) {
+                statement.execute("ALTER TABLE market_meta ADD COLUMN " + column + " INTEGER NOT NULL DEFAULT 0");
+            }
+        }
+    }
+
+    private void inTransaction(SqlWork work) throws IOException {
+        try {
+            Connection c = connect();
+            c.setAutoCommit(false);
+            try {
+                work.run(c);
+                c.commit();
+            } catch (SQLException e) {
+                c.rollback();
+                throw e;
+            } finally {
+                c.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw new IOException("Could not write " + file.getName() + ": " + e.getMessage(), e);
+        }
+    }
+
+    private void writeMarketWide(Connection c, MarketStateSnapshot before, MarketStateSnapshot after) throws SQLException {
+        try (PreparedStatement meta = c.prepareStatement("INSERT OR REPLACE INTO market_meta "
+                + "(id, market_open, time_remaining_seconds, last_saved_timestamp, journal_sequence, cycle_seed, cycle_epoch) "
+                + "VALUES (0, ?, ?, ?, ?, ?, ?)")) {
+            meta.setBoolean(1, after.isMarketOpen());
+            meta.setLong(2, after.getTimeRemainingSeconds());
+            meta.setLong(3, after.getSavedTimestamp());
+            meta.setLong(4, after.getJournalSequence());
+            meta.setLong(5, after.getCycleSeed());
+            meta.setLong(6, after.getCycleEpoch());
+            meta.executeUpdate();
+        }
+
+        // Sections the snapshot reports as unchanged already match the rows.
+        if (before == null || after.isGlobalItemsChanged()) {
+            writeGlobalItems(c, before != null ? before.getGlobalAssignedItems() : Collections.emptyMap(), after.getGlobalAssignedItems());
+        }
+        if (before == null || after.isGlobalStockChanged()) {
+            writeGlobalStock(c, before != null ? before.getGlobalItemStock() : Collections.emptyMap(), after.getGlobalItemStock());
+        }
+    }
+
+    private void writeGlobalItems(Connection c, Map<Integer, MarketStateSnapshot.StoredItem> itemsBefore,
+                                  Map<Integer, MarketStateSnapshot.StoredItem> itemsAfter) throws SQLException {
+        try (PreparedStatement upsert = c.prepareStatement("INSERT OR REPLACE INTO global_items (slot, item_key, discounted, price) VALUES (?, ?, ?, ?)");
+             PreparedStatement delete = c.prepareStatement("DELETE FROM global_items WHERE slot = ?")) {
+            diff(itemsBefore, itemsAfter, (slot, item) -> {
+                upsert.setInt(1, slot);
+                setItem(upsert, 2, item);
+                upsert.addBatch();
+            }, slot -> {
+                delete.setInt(1, slot);
+                delete.addBatch();
+            });
+            delete.executeBatch();
+            upsert.executeBatch();
+        }
+    }
+
+    private void writeGlobalStock(Connection c, Map<String, Integer> stockBefore, Map<String, Integer> stockAfter) throws SQLException {
+        try (PreparedStatement upsert = c.prepareStatement("INSERT OR REPLACE INTO global_stock (item_key, remaining) VALUES (?, ?)");
+             PreparedStatement delete = c.prepareStatement("DELETE FROM global_stock WHERE item_key = ?")) {
+            diff(stockBefore, stockAfter, (key, remaining) -> {
+                upsert.setString(1, key);
+                upsert.setInt(2, remaining);
+                upsert.addBatch();
+            }, key -> {
+                delete.setString(1, key);
+                delete.addBatch();
+            });
+            delete.executeBatch();
+            upsert.executeBatch();
+        }
+    }
+
+    /**
+     * Batches the row changes for any number of players. Players whose stored rows are known are diffed against them;
+     * the rest have their rows deleted and rewritten.
+     */
+    private final class PlayerWriter implements AutoCloseable {
+        private final PreparedStatement assignUpsert, assignDelete, revealInsert, revealDelete;
+        private final PreparedStatement purchaseInsert, purchaseDelete, countUpsert, countDelete, rerollUpsert, rerollDelete;
+        private final PreparedStatement epochUpsert, epochDelete;
+        private final PreparedStatement[] deleteAll = new PreparedStatement[PLAYER_TABLES.length];
+
+        private PlayerWriter(Connection c) throws SQLException {
+            assignUpsert = c.prepareStatement("INSERT OR REPLACE INTO assigned_items (player_uuid, slot, item_key, discounted, price) VALUES (?, ?, ?, ?, ?)");
+            assignDelete = c.prepareStatement("DELETE FROM assigned_items WHERE player_uuid = ? AND slot = ?");
+            revealInsert = c.prepareStatement("INSERT OR REPLACE INTO revealed_slots (player_uuid, slot) VALUES (?, ?)");
+            revealDelete = c.prepareStatement("DELETE FROM revealed_slots WHERE player_uuid = ? AND slot = ?");
+            purchaseInsert = c.prepareStatement("INSERT OR REPLACE INTO purchased_items (player_uuid, item_key) VALUES (?, ?)");
+            purchaseDelete = c.prepareStatement("DELETE FROM purchased_items WHERE player_uuid = ? AND item_key = ?");
+            countUpsert = c.prepareStatement("INSERT OR REPLACE INTO purchase_counts (player_uuid, item_key, purchase_count) VALUES (?, ?, ?)");
+            countDelete = c.prepareStatement("DELETE FROM purchase_counts WHERE player_uuid = ? AND item_key = ?");
+            rerollUpsert = c.prepareStatement("INSERT OR REPLACE INTO player_rerolls (player_uuid, rerolls) VALUES (?, ?)");
+            rerollDelete = c.prepareStatement("DELETE FROM player_rerolls WHERE player_uuid = ?");
+            epochUpsert = c.prepareStatement("INSERT OR REPLACE INTO player_epochs (player_uuid, epoch) VALUES (?, ?)");
+            epochDelete = c.prepareStatement("DELETE FROM player_epochs WHERE player_uuid = ?");
+            for (int i = 0; i < PLAYER_TABLES.length; i++) {
+                deleteAll[i] = c.prepareStatement("DELETE FROM " + PLAYER_TABLES[i] + " WHERE player_uuid = ?");
+            }
+        }
+
+        private void write(UUID playerUUID, MarketStateSnapshot.PlayerState newState) throws SQLException {
+            String uuid = playerUUID.toString();
+            MarketStateSnapshot.PlayerState oldState = savedPlayers.get(playerUUID);
+            if (oldState == newState) {
+                return;
+            }
+            if (oldState == null) {
+                for (PreparedStatement statement : deleteAll) {
+                    statement.setString(1, uuid);
+                    statement.addBatch();
+                }
+                oldState = EMPTY_PLAYER;
+            }
+
+            diff(oldState.getAssignedItems(), newState.getAssignedItems(), (slot, item) -> {
+                assignUpsert.setString(1, uuid);
+                assignUpsert.setInt(2, slot);
+                setItem(assignUpsert, 3, item);
+                assignUpsert.addBatch();
+            }, slot -> {
+                assignDelete.setString(1, uuid);
+                assignDelete.setInt(2, slot);
+                assignDelete.addBatch();
+            });
+
+            diff(oldState.getRevealedSlots(), newState.getRevealedSlots(), slot -> {
+                revealInsert.setString(1, uuid);
+                revealInsert.setInt(2, slot);
+                revealInsert.addBatch();
+            }, slot -> {
+                revealDelete.setString(1, uuid);
+                revealDelete.setInt(2, slot);
+                revealDelete.addBatch();
+            });
+
+            diff(oldState.getPurchasedKeys(), newState.getPurchasedKeys(), key -> {
+                purchaseInsert.setString(1, uuid);
+                purchaseInsert.setString(2, key);
+                purchaseInsert.addBatch();
+            }, key -> {
+                purchaseDelete.setString(1, uuid);
+                purchaseDelete.setString(2, key);
+                purchaseDelete.addBatch();
+            });
+
+            diff(oldState.getPurchaseCounts(), newState.getPurchaseCounts(), (key, count) -> {
+                countUpsert.setString(1, uuid);
+                countUpsert.setString(2, key);
+                countUpsert.setInt(3, count);
+                countUpsert.addBatch();
+            }, key -> {
+                countDelete.setString(1, uuid);
+                countDelete.setString(2, key);
+                countDelete.addBatch();
+            });
+
+            if (oldState.getRerolls() != newState.getRerolls()) {
+                if (newState.getRerolls() > 0) {
+                    rerollUpsert.setString(1, uuid);
+                    rerollUpsert.setInt(2, newState.getRerolls());
+                    rerollUpsert.addBatch();
+                } else {
+                    rerollDelete.setString(1, uuid);
+                    rerollDelete.addBatch();
+                }
+            }
+
+            // Players without a row are in epoch 0, like data written before epochs existed.
+            long oldEpoch = oldState.isEmpty() ? 0L : oldState.getEpoch();
+            long newEpoch = newState.isEmpty() ? 0L : newState.getEpoch();
+            if (oldEpoch != newEpoch) {
+                if (newEpoch != 0) {
+                    epochUpsert.setString(1, uuid);
+                    epochUpsert.setLong(2, newEpoch);
+                    epochUpsert.addBatch();
+                } else {
+                    epochDelete.setString(1, uuid);
+                    epochDelete.addBatch();
+                }
+            }
+        }
+
+        private void flush() throws SQLException {
+            for (PreparedStatement statement : deleteAll) {
+                statement.executeBatch();
+            }
+            for (PreparedStatement statement : new PreparedStatement[]{assignDelete, assignUpsert, revealDelete, revealInsert,
+                    purchaseDelete, purchaseInsert, countDelete, countUpsert, rerollDelete, rerollUpsert, epochDelete, epochUpsert}) {
+                statement.executeBatch();
+            }
+        }
+
+        @Override
+        public void close() throws SQLException {
+            for (PreparedStatement statement : deleteAll) {
+                statement.close();
+            }
+            for (PreparedStatement statement : new PreparedStatement[]{assignDelete, assignUpsert, revealDelete, revealInsert,
+                    purchaseDelete, purchaseInsert, countDelete, countUpsert, rerollDelete, rerollUpsert, epochDelete, epochUpsert}) {
+                statement.close();
+            }
+        }
+    }
+
+    private static void setItem(PreparedStatement statement, int firstIndex, MarketStateSnapshot.StoredItem item) throws SQLException {
+        statement.setString(firstIndex, item.key());
+        statement.setBoolean(firstIndex + 1, item.discounted());
+        statement.setDouble(firstIndex + 2, item.price());
+    }
+
+    private static <K, V> void diff(Map<K, V> before, Map<K, V> after, RowUpsert<K, V> upsert, RowWrite<K> delete) throws SQLException {
+        for (K key : before.keySet()) {
+            if (!after.containsKey(key)) {
+                delete.write(key);
+            }
+        }
+        for (Map.Entry<K, V> entry : after.entrySet()) {
+            if (!entry.getValue().equals(before.get(entry.getKey()))) {
+                upsert.write(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private static <T> void diff(Set<T> before, Set<T> after, RowWrite<T> insert, RowWrite<T> delete) throws SQLException {
+        for (T value : before) {
+            if (!after.contains(value)) {
+                delete.write(value);
+            }
+        }
+        for (T value : after) {
+            if (!before.contains(value)) {
+                insert.write(value);
+            }
+        }
+    }
+
+    private interface SqlWork {
+        void run(Connection c) throws SQLException;
+    }
+
+    private interface RowWrite<T> {
+        void write(T value) throws SQLException;
+    }
+
+    private interface RowUpsert<K, V> {
+        void write(K key, V value) throws SQLException;
+    }
+}
@@ -0,0 +1,36 @@
+package me.allync.nightmarket.storage;
+
+import java.io.File;
+import java.util.logging.Logger;
+
+/**
+ * The backends the market state can be stored in, selected with storage.format.
+ */
+public enum StateFormat {
+
+    YAML {
+        @Override
+        public MarketStateStore createStore(File dataFolder, Logger logger) {
+            return new YamlMarketStateStore(new File(dataFolder, "market_state.yml"), new File(dataFolder, "playerdata"), logger);
+        }
+    },
+
+    BINARY {
+        @Override
+        public MarketStateStore createStore(File dataFolder, Logger logger) {
+            return new BinaryMarketStateStore(new File(dataFolder, "market_state.dat"), new File(dataFolder, "playerdata"), logger);
+        }
+    },
+
+    SQLITE {
+        @Override
+        public MarketStateStore createStore(File dataFolder, Logger logger) {
+            return new SqliteMarketStateStore(new File(dataFolder, "market_state.db"), logger);
+        }
+    };
+
+    /**
+     * Creates the store for this format. Creating a store does not touch the disk.
+     */
+    public abstract MarketStateStore createStore(File dataFolder, Logger logger);
+}
@@ -0,0 +1,239 @@
+package me.allync.nightmarket.storage;
+
+import org.yaml.snakeyaml.LoaderOptions;
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.error.YAMLException;
+import org.yaml.snakeyaml.events.AliasEvent;
+import org.yaml.snakeyaml.events.CollectionEndEvent;
+import org.yaml.snakeyaml.events.CollectionStartEvent;
+import org.yaml.snakeyaml.events.DocumentStartEvent;
+import org.yaml.snakeyaml.events.Event;
+import org.yaml.snakeyaml.events.MappingEndEvent;
+import org.yaml.snakeyaml.events.MappingStartEvent;
+import org.yaml.snakeyaml.events.ScalarEvent;
+import org.yaml.snakeyaml.events.SequenceEndEvent;
+import org.yaml.snakeyaml.events.SequenceStartEvent;
+import org.yaml.snakeyaml.events.StreamEndEvent;
+import org.yaml.snakeyaml.events.StreamStartEvent;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Iterator;
+import java.util.logging.Logger;
+
+/**
+ * Reads a YAML document as a stream of SnakeYAML parser events, so state files can be loaded straight into their
+ * maps without building a configuration tree first. Only plain mappings, sequences and scalars are supported.
+ */
+final class YamlEventReader {
+
+    private final Iterator<Event> events;
+    private final String sourceName;
+    private final Logger logger;
+    private Event peeked;
+    private Event last;
+
+    YamlEventReader(Reader reader, String sourceName, Logger logger) {
+        this.sourceName = sourceName;
+        this.logger = logger;
+        LoaderOptions options = new LoaderOptions();
+        // Same as YamlConfiguration: large state files must not hit SnakeYAML's default size limit.
+        options.setCodePointLimit(Integer.MAX_VALUE);
+        this.events = new Yaml(options).parse(reader).iterator();
+    }
+
+    /**
+     * Moves into the document's top-level mapping.
+     *
+     * @return false if the document is empty.
+     */
+    boolean startDocument() throws IOException {
+        Event event = next();
+        while (event instanceof StreamStartEvent || event instanceof DocumentStartEvent) {
+            event = next();
+        }
+        if (event instanceof StreamEndEvent) {
+            return false;
+        }
+        if (event instanceof MappingStartEvent) {
+            return true;
+        }
+        // A document holding nothing but an empty scalar, e.g. a lone "---".
+        if (event instanceof ScalarEvent scalar && scalar.getValue().isEmpty()) {
+            return false;
+        }
+        throw unexpected(event, "a mapping");
+    }
+
+    /**
+     * @return The next key of the current mapping, or null once the mapping has ended.
+     */
+    String nextKey() throws IOException {
+        Event event = next();
+        if (event instanceof MappingEndEvent) {
+            return null;
+        }
+        if (event instanceof ScalarEvent scalar) {
+            return scalar.getValue();
+        }
+        throw unexpected(event, "a key");
+    }
+
+    /**
+     * Moves into a mapping value. Any other value, such as an empty one, is skipped.
+     *
+     * @return Whether a mapping was entered.
+     */
+    boolean enterMapping() throws IOException {
+        if (peek() instanceof MappingStartEvent) {
+            next();
+            return true;
+        }
+        skipValue();
+        return false;
+    }
+
+    /**
+     * Moves into a sequence value. Any other value, such as an empty one, is skipped.
+     *
+     * @return Whether a sequence was entered.
+     */
+    boolean enterSequence() throws IOException {
+        if (peek() instanceof SequenceStartEvent) {
+            next();
+            return true;
+        }
+        skipValue();
+        return false;
+    }
+
+    /**
+     * @return The next scalar of the current sequence, or null once the sequence has ended.
+     */
+    String nextElement() throws IOException {
+        Event event = next();
+        if (event instanceof SequenceEndEvent) {
+            return null;
+        }
+        if (event instanceof ScalarEvent scalar) {
+            return scalar.getValue();
+        }
+        throw unexpected(event, "a list entry");
+    }
+
+    /**
+     * @return The scalar value, or null if the value is a mapping or sequence (which is skipped).
+     */
+    String readScalar() throws IOException {
+        if (peek() instanceof ScalarEvent scalar) {
+            next();
+            return scalar.getValue();
+        }
+        skipValue();
+        return null;
+    }
+
+    /**
+     * @return The value as a whole number, or null if it is not one. Bad values are logged rather than thrown, so one
+     * corrupt entry never costs the rest of the file; callers skip the entry or fall back to a default.
+     */
+    Integer readInt() throws IOException {
+        return toInt(readScalar());
+    }
+
+    int readInt(int fallback) throws IOException {
+        Integer value = readInt();
+        return value != null ? value : fallback;
+    }
+
+    long readLong(long fallback) throws IOException {
+        String value = readScalar();
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            logInvalid(value, "whole number");
+            return fallback;
+        }
+    }
+
+    /**
+     * @return The value as a number, or null if it is not one (logged, like {@link #readInt()}).
+     */
+    Double readDouble() throws IOException {
+        String value = readScalar();
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException | NullPointerException e) {
+            logInvalid(value, "number");
+            return null;
+        }
+    }
+
+    boolean readBoolean() throws IOException {
+        String value = readScalar();
+        return value != null && (value.equalsIgnoreCase("true") || value.equalsIgnoreCase("yes") || value.equalsIgnoreCase("on"));
+    }
+
+    Integer toInt(String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            logInvalid(value, "whole number");
+            return null;
+        }
+    }
+
+    /**
+     * Skips the next value, including everything nested inside it.
+     */
+    void skipValue() throws IOException {
+        int depth = 0;
+        do {
+            Event event = next();
+            if (event instanceof CollectionStartEvent) {
+                depth++;
+            } else if (event instanceof CollectionEndEvent) {
+                depth--;
+            }
+        } while (depth > 0);
+    }
+
+    private Event peek() throws IOException {
+        if (peeked == null) {
+            peeked = next();
+        }
+        return peeked;
+    }
+
+    private Event next() throws IOException {
+        Event event = peeked;
+        if (event != null) {
+            peeked = null;
+            last = event;
+            return event;
+        }
+        try {
+            if (!events.hasNext()) {
+                throw new IOException("Unexpected end of YAML document.");
+            }
+            event = events.next();
+        } catch (YAMLException e) {
+            throw new IOException("Invalid YAML: " + e.getMessage(), e);
+        }
+        if (event instanceof AliasEvent) {
+            throw unexpected(event, "a value without aliases");
+        }
+        last = event;
+        return event;
+    }
+
+    private IOException unexpected(Event event, String expected) {
+        return new IOException("Expected " + expected + " but found " + event.getClass().getSimpleName().replace("Event", "")
+                + " at line " + (event.getStartMark().getLine() + 1) + ".");
+    }
+
+    private void logInvalid(String value, String expected) {
+        logger.warning("Skipping '" + value + "' in " + sourceName + " at line " + (last.getStartMark().getLine() + 1)
+                + ": expected a " + expected + ".");
+    }
+}
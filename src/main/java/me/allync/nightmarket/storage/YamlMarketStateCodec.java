@@ -0,0 +1,255 @@
+package me.allync.nightmarket.storage;
+
+import org.bukkit.configuration.ConfigurationSection;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+/**
+ * Converts between {@link MarketStateSnapshot} and the market_state.yml layout.
+ * Player sections in market_state.yml are only read for files written before player data moved to shard files.
+ * <p>
+ * Reading goes straight from SnakeYAML's parser events into the snapshot's maps, without building a configuration
+ * tree, so large files load in a single pass.
+ */
+public final class YamlMarketStateCodec {
+
+    private YamlMarketStateCodec() {}
+
+    /**
+     * Writes the market-wide state. Player data is kept in shard files and is never written to market_state.yml.
+     */
+    public static void write(MarketStateSnapshot snapshot, ConfigurationSection root) {
+        writeScalars(snapshot, root);
+        writeGlobalItems(snapshot, root);
+        writeGlobalStock(snapshot, root);
+    }
+
+    /**
+     * Brings a root previously filled by {@link #write} up to date with a newer snapshot, rebuilding only the
+     * sections the snapshot marks as changed.
+     */
+    public static void update(MarketStateSnapshot snapshot, ConfigurationSection root) {
+        writeScalars(snapshot, root);
+        if (snapshot.isGlobalItemsChanged()) {
+            writeGlobalItems(snapshot, root);
+        }
+        if (snapshot.isGlobalStockChanged()) {
+            writeGlobalStock(snapshot, root);
+        }
+    }
+
+    private static void writeScalars(MarketStateSnapshot snapshot, ConfigurationSection root) {
+        root.set("market_open", snapshot.isMarketOpen());
+        root.set("time_remaining_seconds", snapshot.getTimeRemainingSeconds());
+        root.set("last_saved_timestamp", snapshot.getSavedTimestamp());
+        root.set("journal_sequence", snapshot.getJournalSequence());
+        root.set("cycle_seed", snapshot.getCycleSeed() != 0 ? snapshot.getCycleSeed() : null);
+        root.set("cycle_epoch", snapshot.getCycleEpoch());
+    }
+
+    private static void writeGlobalItems(MarketStateSnapshot snapshot, ConfigurationSection root) {
+        ConfigurationSection globalItemsSection = root.createSection("global_assigned_items");
+        for (Map.Entry<Integer, MarketStateSnapshot.StoredItem> entry : snapshot.getGlobalAssignedItems().entrySet()) {
+            writeItem(globalItemsSection.createSection(String.valueOf(entry.getKey())), entry.getValue());
+        }
+    }
+
+    private static void writeGlobalStock(MarketStateSnapshot snapshot, ConfigurationSection root) {
+        ConfigurationSection stockSection = root.createSection("global_item_stock");
+        for (Map.Entry<String, Integer> entry : snapshot.getGlobalItemStock().entrySet()) {
+            stockSection.set(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Reads market_state.yml as a stream of parser events, filling the snapshot's maps as it goes.
+     */
+    public static MarketStateSnapshot read(Reader reader, Logger logger) throws IOException {
+        boolean marketOpen = false;
+        long savedTimestamp = System.currentTimeMillis() / 1000;
+        long timeRemaining = 0L;
+        long journalSequence = 0L;
+        long cycleSeed = 0L;
+        long cycleEpoch = 0L;
+        Map<Integer, MarketStateSnapshot.StoredItem> globalItems = new HashMap<>();
+        Map<String, Integer> stock = new HashMap<>();
+        Map<UUID, MutablePlayerState> players = new HashMap<>();
+
+        YamlEventReader in = new YamlEventReader(reader, "market_state.yml", logger);
+        if (in.startDocument()) {
+            String key;
+            while ((key = in.nextKey()) != null) {
+                switch (key) {
+                    case "market_open" -> marketOpen = in.readBoolean();
+                    case "time_remaining_seconds" -> timeRemaining = in.readLong(0L);
+                    case "last_saved_timestamp" -> savedTimestamp = in.readLong(savedTimestamp);
+                    case "journal_sequence" -> journalSequence = in.readLong(0L);
+                    case "cycle_seed" -> cycleSeed = in.readLong(0L);
+                    case "cycle_epoch" -> cycleEpoch = in.readLong(0L);
+                    case "global_assigned_items" -> readItems(in, globalItems);
+                    case "global_item_stock" -> readCounts(in, stock);
+                    case "player_purchases" -> readPlayerSection(in, key, players, logger, state -> readStrings(in, state.purchasedKeys));
+                    case "player_purchase_counts" -> readPlayerSection(in, key, players, logger, state -> readCounts(in, state.purchaseCounts));
+                    case "player_revealed_slots" -> readPlayerSection(in, key, players, logger, state -> readInts(in, state.revealedSlots));
+                    case "player_assigned_items" -> readPlayerSection(in, key, players, logger, state -> readItems(in, state.assignedItems));
+                    default -> in.skipValue();
+                }
+            }
+        }
+
+        Map<UUID, MarketStateSnapshot.PlayerState> playerStates = new HashMap<>();
+        players.forEach((uuid, state) -> playerStates.put(uuid, state.toSnapshot()));
+        return new MarketStateSnapshot(marketOpen, timeRemaining, savedTimestamp, journalSequence, cycleSeed, cycleEpoch, globalItems, stock, playerStates);
+    }
+
+    /**
+     * Writes a single player's shard file layout: the epoch, assigned_items, revealed_slots, purchases,
+     * purchase_counts and, in seeded cycles, rerolls.
+     */
+    public static void writePlayer(MarketStateSnapshot.PlayerState state, ConfigurationSection root) {
+        root.set("epoch", state.getEpoch());
+        ConfigurationSection assignedSection = root.createSection("assigned_items");
+        for (Map.Entry<Integer, MarketStateSnapshot.StoredItem> entry : state.getAssignedItems().entrySet()) {
+            writeItem(assignedSection.createSection(String.valueOf(entry.getKey())), entry.getValue());
+        }
+        root.set("revealed_slots", new ArrayList<>(state.getRevealedSlots()));
+        root.set("purchases", new ArrayList<>(state.getPurchasedKeys()));
+        ConfigurationSection countsSection = root.createSection("purchase_counts");
+        for (Map.Entry<String, Integer> entry : state.getPurchaseCounts().entrySet()) {
+            countsSection.set(entry.getKey(), entry.getValue());
+        }
+        if (state.getRerolls() > 0) {
+            root.set("rerolls", state.getRerolls());
+        }
+    }
+
+    public static MarketStateSnapshot.PlayerState readPlayer(Reader reader, String sourceName, Logger logger) throws IOException {
+        MutablePlayerState state = new MutablePlayerState();
+        YamlEventReader in = new YamlEventReader(reader, sourceName, logger);
+        if (in.startDocument()) {
+            String key;
+            while ((key = in.nextKey()) != null) {
+                switch (key) {
+                    case "assigned_items" -> readItems(in, state.assignedItems);
+                    case "revealed_slots" -> readInts(in, state.revealedSlots);
+                    case "purchases" -> readStrings(in, state.purchasedKeys);
+                    case "purchase_counts" -> readCounts(in, state.purchaseCounts);
+                    case "rerolls" -> state.rerolls = in.readInt(0);
+                    case "epoch" -> state.epoch = in.readLong(0L);
+                    default -> in.skipValue();
+                }
+            }
+        }
+        return state.toSnapshot();
+    }
+
+    private static void writeItem(ConfigurationSection itemDataSection, MarketStateSnapshot.StoredItem item) {
+        itemDataSection.set("key", item.key());
+        itemDataSection.set("discounted", item.discounted());
+        itemDataSection.set("price", item.price());
+    }
+
+    private interface PlayerValueReader {
+        void read(MutablePlayerState state) throws IOException;
+    }
+
+    /**
+     * Reads a legacy section keyed by player UUID, handing each player's value to {@code valueReader}.
+     */
+    private static void readPlayerSection(YamlEventReader in, String section, Map<UUID, MutablePlayerState> players,
+                                          Logger logger, PlayerValueReader valueReader) throws IOException {
+        if (!in.enterMapping()) {
+            return;
+        }
+        String uuidString;
+        while ((uuidString = in.nextKey()) != null) {
+            UUID playerUUID;
+            try {
+                playerUUID = UUID.fromString(uuidString);
+            } catch (IllegalArgumentException e) {
+                logger.warning("Invalid UUID string in market_state.yml under " + section + ": " + uuidString);
+                in.skipValue();
+                continue;
+            }
+            valueReader.read(players.computeIfAbsent(playerUUID, k -> new MutablePlayerState()));
+        }
+    }
+
+    private static void readItems(YamlEventReader in, Map<Integer, MarketStateSnapshot.StoredItem> items) throws IOException {
+        if (!in.enterMapping()) {
+            return;
+        }
+        String slotString;
+        while ((slotString = in.nextKey()) != null) {
+            Integer slot = in.toInt(slotString);
+            MarketStateSnapshot.StoredItem item = readItem(in);
+            if (slot != null && item != null) {
+                items.put(slot, item);
+            }
+        }
+    }
+
+    private static MarketStateSnapshot.StoredItem readItem(YamlEventReader in) throws IOException {
+        if (!in.enterMapping()) {
+            return null;
+        }
+        String itemKey = null;
+        boolean discounted = false;
+        Double price = 0.0;
+        String field;
+        while ((field = in.nextKey()) != null) {
+            switch (field) {
+                case "key" -> itemKey = in.readScalar();
+                case "discounted" -> discounted = in.readBoolean();
+                case "price" -> price = in.readDouble();
+                default -> in.skipValue();
+            }
+        }
+        // A price that is not a number drops the item, which is then assigned again.
+        if (itemKey == null || itemKey.isEmpty() || price == null) return null;
+        return new MarketStateSnapshot.StoredItem(itemKey, discounted, price);
+    }
+
+    private static void readCounts(YamlEventReader in, Map<String, Integer> counts) throws IOException {
+        if (!in.enterMapping()) {
+            return;
+        }
+        String key;
+        while ((key = in.nextKey()) != null) {
+            Integer count = in.readInt();
+            if (count != null) {
+                counts.put(key, count);
+            }
+        }
+    }
+
+    private static void readStrings(YamlEventReader in, Collection<String> values) throws IOException {
+        if (!in.enterSequence()) {
+            return;
+        }
+        String value;
+        while ((value = in.nextElement()) != null) {
+            values.add(value);
+        }
+    }
+
+    private static void readInts(YamlEventReader in, Collection<Integer> values) throws IOException {
+        if (!in.enterSequence()) {
+            return;
+        }
+        String value;
+        while ((value = in.nextElement()) != null) {
+            Integer number = in.toInt(value);
+            if (number != null) {
+                values.add(number);
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package me.allync.nightmarket.storage;
+
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the market state in market_state.yml and each player's data in playerdata/&lt;uuid&gt;.yml.
+ */
+public class YamlMarketStateStore extends FileMarketStateStore {
+
+    // The tree behind the last written market_state.yml, so later saves only rebuild the sections that changed.
+    private YamlConfiguration written;
+
+    public YamlMarketStateStore(File file, File playerDirectory, Logger logger) {
+        super(file, playerDirectory, ".yml", logger);
+    }
+
+    @Override
+    protected MarketStateSnapshot read(File source) throws IOException {
+        try (Reader reader = openReader(source)) {
+            return YamlMarketStateCodec.read(reader, logger);
+        }
+    }
+
+    @Override
+    protected void write(MarketStateSnapshot snapshot, File target) throws IOException {
+        YamlConfiguration config = written;
+        if (config == null) {
+            config = new YamlConfiguration();
+            YamlMarketStateCodec.write(snapshot, config);
+        } else {
+            YamlMarketStateCodec.update(snapshot, config);
+        }
+        written = null;
+        config.save(target);
+        written = config;
+    }
+
+    @Override
+    protected MarketStateSnapshot.PlayerState readPlayer(File source) throws IOException {
+        try (Reader reader = openReader(source)) {
+            return YamlMarketStateCodec.readPlayer(reader, source.getName(), logger);
+        }
+    }
+
+    @Override
+    protected void writePlayer(MarketStateSnapshot.PlayerState state, File target) throws IOException {
+        YamlConfiguration config = new YamlConfiguration();
+        YamlMarketStateCodec.writePlayer(state, config);
+        config.save(target);
+    }
+
+    private static Reader openReader(File source) throws IOException {
+        return Files.newBufferedReader(source.toPath(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,105 @@
+package me.allync.nightmarket.util;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Weighted random selection in constant time, using Vose's alias method.
+ * <p>
+ * The table splits the total weight into one column per value. Each column holds part of its own value's weight and
+ * is topped up with an "alias" value, so a draw is one column pick and one coin flip, with no allocation.
+ * Tables are immutable; build a new one when the values or weights change.
+ */
+public final class AliasTable<T> {
+
+    private final Object[] values;
+    private final double[] probability;
+    private final int[] alias;
+
+    private AliasTable(Object[] values, double[] probability, int[] alias) {
+        this.values = values;
+        this.probability = probability;
+        this.alias = alias;
+    }
+
+    /**
+     * Builds a table over {@code values}. Values with a weight of 0 or less are never drawn.
+     */
+    public static <T> AliasTable<T> build(List<T> values, ToDoubleFunction<T> weight) {
+        Object[] drawable = new Object[values.size()];
+        double[] weights = new double[values.size()];
+        int n = 0;
+        double totalWeight = 0.0;
+        for (T value : values) {
+            double w = weight.applyAsDouble(value);
+            if (w > 0.0) {
+                drawable[n] = value;
+                weights[n++] = w;
+                totalWeight += w;
+            }
+        }
+        if (n == 0) {
+            return new AliasTable<>(new Object[0], new double[0], new int[0]);
+        }
+
+        double[] probability = new double[n];
+        int[] alias = new int[n];
+        int[] small = new int[n];
+        int[] large = new int[n];
+        int smallCount = 0;
+        int largeCount = 0;
+        double[] scaled = new double[n];
+        for (int i = 0; i < n; i++) {
+            scaled[i] = weights[i] * n / totalWeight;
+            if (scaled[i] < 1.0) {
+                small[smallCount++] = i;
+            } else {
+                large[largeCount++] = i;
+            }
+        }
+
+        while (smallCount > 0 && largeCount > 0) {
+            int less = small[--smallCount];
+            int more = large[--largeCount];
+            probability[less] = scaled[less];
+            alias[less] = more;
+            scaled[more] = (scaled[more] + scaled[less]) - 1.0;
+            if (scaled[more] < 1.0) {
+                small[smallCount++] = more;
+            } else {
+                large[largeCount++] = more;
+            }
+        }
+        // Whatever is left is within rounding error of a full column.
+        while (largeCount > 0) {
+            probability[large[--largeCount]] = 1.0;
+        }
+        while (smallCount > 0) {
+            probability[small[--smallCount]] = 1.0;
+        }
+
+        return new AliasTable<>(Arrays.copyOf(drawable, n), probability, alias);
+    }
+
+    public boolean isEmpty() {
+        return values.length == 0;
+    }
+
+    public int size() {
+        return values.length;
+    }
+
+    /**
+     * @return A value drawn with probability proportional to its weight, or null if the table is empty.
+     */
+    @SuppressWarnings("unchecked")
+    public T sample(Random random) {
+        if (values.length == 0) {
+            return null;
+        }
+        int column = random.nextInt(values.length);
+        return (T) values[random.nextDouble() < probability[column] ? column : alias[column]];
+    }
+}
@@ -0,0 +1,61 @@
+package me.allync.nightmarket.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Lore lines compiled once into the literal text around a placeholder.
+ * <p>
+ * Each line is stored as its segments split on the placeholder, so filling the template in is a single pass that
+ * joins the segments with the value, without searching the lines again.
+ */
+public final class LoreTemplate {
+
+    // Segments of each line; the value goes between every two consecutive segments.
+    private final String[][] lines;
+
+    private LoreTemplate(String[][] lines) {
+        this.lines = lines;
+    }
+
+    /**
+     * Compiles {@code lines}, treating every occurrence of {@code placeholder} as a hole.
+     */
+    public static LoreTemplate compile(List<String> lines, String placeholder) {
+        String[][] compiled = new String[lines.size()][];
+        for (int i = 0; i < compiled.length; i++) {
+            String line = lines.get(i);
+            List<String> segments = new ArrayList<>(2);
+            int start = 0;
+            int hole;
+            while ((hole = line.indexOf(placeholder, start)) >= 0) {
+                segments.add(line.substring(start, hole));
+                start = hole + placeholder.length();
+            }
+            segments.add(line.substring(start));
+            compiled[i] = segments.toArray(new String[0]);
+        }
+        return new LoreTemplate(compiled);
+    }
+
+    /**
+     * @return The lines with every hole replaced by {@code value}.
+     */
+    public List<String> fill(String value) {
+        List<String> filled = new ArrayList<>(lines.length);
+        StringBuilder builder = new StringBuilder();
+        for (String[] segments : lines) {
+            if (segments.length == 1) {
+                filled.add(segments[0]);
+                continue;
+            }
+            builder.setLength(0);
+            builder.append(segments[0]);
+            for (int i = 1; i < segments.length; i++) {
+                builder.append(value).append(segments[i]);
+            }
+            filled.add(builder.toString());
+        }
+        return filled;
+    }
+}
@@ -0,0 +1,147 @@
+package me.allync.nightmarket.util;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Weighted random sampling without replacement.
+ * <p>
+ * The weights are kept in a Fenwick tree, so a draw finds its value by descending the tree and removing the value only
+ * updates the partial sums on its path: drawing k distinct values from n costs O(k log n) and never has to retry.
+ * <p>
+ * Build one sampler per pool and {@link #copy()} it for each selection, since draws remove values from the sampler.
+ */
+public final class WeightedSampler<T> {
+
+    private final List<T> values;
+    private final Map<T, Integer> indexes;
+    private final double[] weights;
+    // 1-based Fenwick tree over weights.
+    private final double[] tree;
+    private int remaining;
+
+    private WeightedSampler(List<T> values, Map<T, Integer> indexes, double[] weights, double[] tree, int remaining) {
+        this.values = values;
+        this.indexes = indexes;
+        this.weights = weights;
+        this.tree = tree;
+        this.remaining = remaining;
+    }
+
+    /**
+     * Builds a sampler over {@code values} in O(n). Values with a weight of 0 or less are never drawn.
+     */
+    public static <T> WeightedSampler<T> build(List<T> values, ToDoubleFunction<T> weight) {
+        int n = values.size();
+        Map<T, Integer> indexes = new HashMap<>(n * 2);
+        double[] weights = new double[n];
+        double[] tree = new double[n + 1];
+        int remaining = 0;
+        for (int i = 0; i < n; i++) {
+            indexes.put(values.get(i), i);
+            weights[i] = Math.max(0.0, weight.applyAsDouble(values.get(i)));
+            if (weights[i] > 0.0) {
+                remaining++;
+            }
+            tree[i + 1] += weights[i];
+            int parent = (i + 1) + ((i + 1) & -(i + 1));
+            if (parent <= n) {
+                tree[parent] += tree[i + 1];
+            }
+        }
+        return new WeightedSampler<>(List.copyOf(values), Collections.unmodifiableMap(indexes), weights, tree, remaining);
+    }
+
+    /**
+     * @return An independent sampler with the values this one still holds. Clones the weight and tree arrays, so it
+     * is O(n), but without hashing or rebuilding the tree.
+     */
+    public WeightedSampler<T> copy() {
+        return new WeightedSampler<>(values, indexes, weights.clone(), tree.clone(), remaining);
+    }
+
+    /**
+     * @return Whether any value can still be drawn.
+     */
+    public boolean isEmpty() {
+        return remaining == 0;
+    }
+
+    /**
+     * Removes a value so it can no longer be drawn. Does nothing if the value is not in the sampler or already removed.
+     */
+    public void remove(T value) {
+        Integer index = indexes.get(value);
+        if (index != null) {
+            removeAt(index);
+        }
+    }
+
+    /**
+     * Draws a value with probability proportional to its weight among the values left, and removes it.
+     *
+     * @return The value, or null if none are left.
+     */
+    public T draw(Random random) {
+        if (remaining == 0) {
+            return null;
+        }
+        int index = find(random.nextDouble() * prefixSum(weights.length));
+        if (weights[index] <= 0.0) {
+            // Rounding in the partial sums can land the descent on a removed neighbour.
+            index = nearestDrawable(index);
+        }
+        removeAt(index);
+        return values.get(index);
+    }
+
+    private double prefixSum(int count) {
+        double sum = 0.0;
+        for (int i = count; i > 0; i -= i & -i) {
+            sum += tree[i];
+        }
+        return sum;
+    }
+
+    /**
+     * @return The first index whose cumulative weight exceeds {@code target}.
+     */
+    private int find(double target) {
+        int position = 0;
+        for (int step = Integer.highestOneBit(weights.length); step > 0; step >>= 1) {
+            int next = position + step;
+            if (next < tree.length && tree[next] <= target) {
+                target -= tree[next];
+                position = next;
+            }
+        }
+        return Math.min(position, weights.length - 1);
+    }
+
+    private int nearestDrawable(int index) {
+        for (int offset = 1; ; offset++) {
+            if (index - offset >= 0 && weights[index - offset] > 0.0) {
+                return index - offset;
+            }
+            if (index + offset < weights.length && weights[index + offset] > 0.0) {
+                return index + offset;
+            }
+        }
+    }
+
+    private void removeAt(int index) {
+        double weight = weights[index];
+        if (weight <= 0.0) {
+            return;
+        }
+        weights[index] = 0.0;
+        remaining--;
+        for (int i = index + 1; i < tree.length; i += i & -i) {
+            tree[i] -= weight;
+        }
+    }
+}
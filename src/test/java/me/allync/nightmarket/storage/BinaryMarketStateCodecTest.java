@@ -0,0 +1,76 @@
+package me.allync.nightmarket.storage;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class BinaryMarketStateCodecTest {
+
+    private static final UUID PLAYER = UUID.fromString("0f8fad5b-d9cb-469f-a165-70867728950e");
+
+    private static MarketStateSnapshot.PlayerState player() {
+        return new MarketStateSnapshot.PlayerState(
+                Map.of(10, new MarketStateSnapshot.StoredItem("diamond_sword", true, 750.5), 12, new MarketStateSnapshot.StoredItem("elytra", false, 5000.0)),
+                Set.of(10, 12),
+                Set.of("diamond_sword"),
+                Map.of("elytra", 2, "golden_apple", 5),
+                3, 7L);
+    }
+
+    private static MarketStateSnapshot snapshot() {
+        return new MarketStateSnapshot(true, 3600L, 1_700_000_000L, 42L, 0x1234_5678_9ABC_DEF0L, 7L,
+                Map.of(11, new MarketStateSnapshot.StoredItem("golden_apple", false, 120.0)),
+                Map.of("golden_apple", 8, "elytra", -1),
+                Map.of(PLAYER, player()));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 2, 3})
+    void stateRoundTripsInEveryVersion(int version) throws IOException {
+        MarketStateSnapshot written = snapshot();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BinaryMarketStateCodec.write(written, bytes, version);
+
+        MarketStateSnapshot read = BinaryMarketStateCodec.read(new ByteArrayInputStream(bytes.toByteArray()));
+
+        assertEquals(written.isMarketOpen(), read.isMarketOpen());
+        assertEquals(written.getTimeRemainingSeconds(), read.getTimeRemainingSeconds());
+        assertEquals(written.getSavedTimestamp(), read.getSavedTimestamp());
+        assertEquals(written.getJournalSequence(), read.getJournalSequence());
+        // Fields a version did not have read back as their defaults.
+        assertEquals(version >= 2 ? written.getCycleSeed() : 0L, read.getCycleSeed());
+        assertEquals(version >= 3 ? written.getCycleEpoch() : 0L, read.getCycleEpoch());
+        assertEquals(written.getGlobalAssignedItems(), read.getGlobalAssignedItems());
+        assertEquals(written.getGlobalItemStock(), read.getGlobalItemStock());
+        assertEquals(written.getPlayers().keySet(), read.getPlayers().keySet());
+        assertPlayerEquals(written.getPlayers().get(PLAYER), read.getPlayers().get(PLAYER), version);
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 2, 3})
+    void playerRoundTripsInEveryVersion(int version) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BinaryMarketStateCodec.writePlayer(player(), bytes, version);
+
+        MarketStateSnapshot.PlayerState read = BinaryMarketStateCodec.readPlayer(new ByteArrayInputStream(bytes.toByteArray()));
+
+        assertPlayerEquals(player(), read, version);
+    }
+
+    private static void assertPlayerEquals(MarketStateSnapshot.PlayerState expected, MarketStateSnapshot.PlayerState actual, int version) {
+        assertEquals(expected.getAssignedItems(), actual.getAssignedItems());
+        assertEquals(expected.getRevealedSlots(), actual.getRevealedSlots());
+        assertEquals(expected.getPurchasedKeys(), actual.getPurchasedKeys());
+        assertEquals(expected.getPurchaseCounts(), actual.getPurchaseCounts());
+        assertEquals(version >= 2 ? expected.getRerolls() : 0, actual.getRerolls());
+        assertEquals(version >= 3 ? expected.getEpoch() : 0L, actual.getEpoch());
+    }
+}
@@ -0,0 +1,83 @@
+package me.allync.nightmarket.storage;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class MarketJournalTest {
+
+    private static final UUID PLAYER = UUID.fromString("0f8fad5b-d9cb-469f-a165-70867728950e");
+
+    @TempDir
+    File directory;
+
+    private final List<JournalRecord> records = List.of(
+            JournalRecord.assign(PLAYER, 10, "diamond_sword", true, 750.5),
+            JournalRecord.reveal(PLAYER, 10),
+            JournalRecord.resetCycle(8L, 0x1234_5678_9ABC_DEF0L, true),
+            JournalRecord.assignGlobal(11, "golden_apple", false, 120.0),
+            JournalRecord.stock("golden_apple", 7),
+            JournalRecord.purchase(PLAYER, "golden_apple", true));
+
+    @Test
+    void replayReturnsEveryIntactRecordInOrder() {
+        File file = writeJournal();
+
+        List<JournalRecord> replayed = new ArrayList<>();
+        long lastSequence = newJournal(file).replay(0L, replayed::add);
+
+        assertEquals(records, replayed);
+        assertEquals(records.size(), lastSequence);
+    }
+
+    @Test
+    void replayStopsAtTornLastFrame() throws IOException {
+        File file = writeJournal();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 3);
+        }
+
+        List<JournalRecord> replayed = new ArrayList<>();
+        long lastSequence = newJournal(file).replay(0L, replayed::add);
+
+        assertEquals(records.subList(0, records.size() - 1), replayed);
+        assertEquals(records.size() - 1, lastSequence);
+    }
+
+    @Test
+    void replaySkipsRecordsCoveredByCheckpoint() {
+        File file = writeJournal();
+
+        List<JournalRecord> replayed = new ArrayList<>();
+        long lastSequence = newJournal(file).replay(2L, replayed::add);
+
+        // The cycle reset is the first record past the checkpoint.
+        assertEquals(records.subList(2, records.size()), replayed);
+        assertEquals(JournalRecord.Type.RESET_CYCLE, replayed.get(0).type());
+        assertEquals(records.size(), lastSequence);
+    }
+
+    private File writeJournal() {
+        File file = new File(directory, "journal.bin");
+        MarketJournal journal = newJournal(file);
+        journal.open(0L, true);
+        for (JournalRecord record : records) {
+            journal.append(record);
+        }
+        journal.close(0L);
+        return file;
+    }
+
+    private static MarketJournal newJournal(File file) {
+        return new MarketJournal(Logger.getLogger("MarketJournalTest"), file, false, Long.MAX_VALUE, () -> {});
+    }
+}